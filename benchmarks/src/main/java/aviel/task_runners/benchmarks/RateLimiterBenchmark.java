@@ -0,0 +1,91 @@
+package aviel.task_runners.benchmarks;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.RandomStorage;
+import aviel.task_runners.pending_tasks.Storage;
+import aviel.task_runners.rate_limiters.ExactRateLimiter;
+import aviel.task_runners.rate_limiters.ExactUniformingRateLimiter;
+import aviel.task_runners.rate_limiters.LoadBasedRateLimiter;
+import aviel.task_runners.rate_limiters.RateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Throughput of submitTask, from a single submitter up to as many submitters as there are processors.
+ * A limit that is low compared with the throughput measures mostly the pending path,
+ * the pended tasks are stored in a RandomStorage bounded by maxStoredTasks so the run does not grow without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+    public enum LimiterType {
+        EXACT,
+        EXACT_UNIFORMING,
+        LOAD_BASED,
+    }
+
+    @Param
+    public LimiterType limiterType;
+    @Param({"100", "100000"})
+    public int limit;
+    @Param({"1", "1024"})
+    public int keys;
+    @Param({"1024", "65536"})
+    public int maxStoredTasks;
+
+    private ScheduledExecutorService pendingScheduler;
+    private RateLimiter<KeyedTask<Integer>> limiter;
+    private KeyedTask<Integer>[] tasks;
+
+    @Setup
+    public void setUp() {
+        pendingScheduler = Executors.newSingleThreadScheduledExecutor();
+        Supplier<Storage<KeyedTask<Integer>>> pendingTasksCreator =
+                () -> new RandomStorage<>(new Random(), maxStoredTasks, __ -> {});
+        limiter = switch (limiterType) {
+            case EXACT -> new ExactRateLimiter<>(pendingTasksCreator, pendingScheduler, Duration.ofSeconds(1), limit);
+            case EXACT_UNIFORMING ->
+                    new ExactUniformingRateLimiter<>(pendingTasksCreator, pendingScheduler, 0.5, Duration.ofSeconds(1), limit);
+            case LOAD_BASED -> new LoadBasedRateLimiter<>(pendingTasksCreator, pendingScheduler, limit, limit);
+        };
+        tasks = Tasks.create(keys);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pendingScheduler.shutdownNow();
+    }
+
+    @State(Scope.Thread)
+    public static class Submitter {
+        private int next;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void submitTask(Submitter submitter) {
+        limiter.submitTask(tasks[submitter.next++ & Tasks.MASK]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void submitTask4Threads(Submitter submitter) {
+        limiter.submitTask(tasks[submitter.next++ & Tasks.MASK]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void submitTaskMaxThreads(Submitter submitter) {
+        limiter.submitTask(tasks[submitter.next++ & Tasks.MASK]);
+    }
+}
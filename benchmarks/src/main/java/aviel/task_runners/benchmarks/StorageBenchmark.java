@@ -0,0 +1,97 @@
+package aviel.task_runners.benchmarks;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.BoundedQueueStorage;
+import aviel.task_runners.pending_tasks.DeficitRoundRobinStorage;
+import aviel.task_runners.pending_tasks.KeyedSwapperByOldestStorage;
+import aviel.task_runners.pending_tasks.OverflowPolicy;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.pending_tasks.RandomStorage;
+import aviel.task_runners.pending_tasks.Storage;
+import aviel.task_runners.pending_tasks.StripedRandomStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a store followed by a fetch on a storage that is kept half full, so both take their steady state paths.
+ * KeyedSwapperByOldestStorage holds keys queues of maxStoredTasks / keys tasks each, StripedRandomStorage has 16 stripes.
+ * DeficitRoundRobinStorage weighs its keys from 1 to 4.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+    private static final int BATCH = 64;
+
+    public enum StorageType {
+        QUEUE,
+        BOUNDED_QUEUE,
+        RANDOM,
+        STRIPED_RANDOM,
+        KEYED_SWAPPER,
+        DEFICIT_ROUND_ROBIN,
+    }
+
+    @Param
+    public StorageType storageType;
+    @Param({"1", "64", "4096"})
+    public int keys;
+    @Param({"1024", "65536"})
+    public int maxStoredTasks;
+
+    private Storage<KeyedTask<Integer>> storage;
+    private KeyedTask<Integer>[] tasks;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        storage = switch (storageType) {
+            case QUEUE -> new QueueStorage<>();
+            case BOUNDED_QUEUE -> new BoundedQueueStorage<>(maxStoredTasks, OverflowPolicy.DROP_OLDEST);
+            case RANDOM -> new RandomStorage<>(new Random(), maxStoredTasks, __ -> {});
+            case STRIPED_RANDOM -> new StripedRandomStorage<>(16, maxStoredTasks, __ -> {});
+            case KEYED_SWAPPER -> new KeyedSwapperByOldestStorage<>(keys, Math.max(1, maxStoredTasks / keys));
+            case DEFICIT_ROUND_ROBIN -> new DeficitRoundRobinStorage<>(key -> 1 + (key & 3), maxStoredTasks, OverflowPolicy.DROP_OLDEST, __ -> {});
+        };
+        tasks = Tasks.create(keys);
+        for (int i = 0; i < maxStoredTasks / 2; i++) {
+            storage.store(tasks[i & Tasks.MASK]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<KeyedTask<Integer>> storeAndFetch(Producer producer) {
+        storage.store(tasks[producer.next++ & Tasks.MASK]);
+        return storage.fetch();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<KeyedTask<Integer>> storeAndFetch4Threads(Producer producer) {
+        storage.store(tasks[producer.next++ & Tasks.MASK]);
+        return storage.fetch();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public List<KeyedTask<Integer>> storeAllAndFetchUpTo(Producer producer) {
+        int from = producer.next & Tasks.MASK & -BATCH;
+        producer.next += BATCH;
+        storage.storeAll(Arrays.asList(tasks).subList(from, from + BATCH));
+        return storage.fetchUpTo(BATCH);
+    }
+}
@@ -0,0 +1,23 @@
+package aviel.task_runners.benchmarks;
+
+import aviel.task_runners.KeyedTask;
+
+class Tasks {
+    /**
+     * Enough distinct tasks for the storages not to see the same instance twice in a row.
+     */
+    static final int COUNT = 1 << 16;
+    static final int MASK = COUNT - 1;
+
+    /**
+     * @return COUNT no-op tasks whose keys are spread evenly over keys keys
+     */
+    static KeyedTask<Integer>[] create(int keys) {
+        @SuppressWarnings("unchecked")
+        KeyedTask<Integer>[] tasks = (KeyedTask<Integer>[]) new KeyedTask<?>[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            tasks[i] = KeyedTask.of(i % keys, () -> {});
+        }
+        return tasks;
+    }
+}
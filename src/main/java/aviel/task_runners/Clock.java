@@ -0,0 +1,16 @@
+package aviel.task_runners;
+
+/**
+ * The source of time of the limiters and storages, a monotonic nanosecond counter as {@link System#nanoTime()}.
+ * Only differences between two readings of the same clock are meaningful.
+ */
+@FunctionalInterface
+public interface Clock {
+    Clock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+
+    static Clock system() {
+        return SYSTEM;
+    }
+}
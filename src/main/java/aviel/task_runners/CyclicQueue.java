@@ -1,60 +1,124 @@
 package aviel.task_runners;
 
+import java.util.Collection;
 import java.util.Optional;
+import java.util.function.Consumer;
 
+/**
+ * A bounded FIFO queue that overwrites its oldest element when an element is put while it is full.
+ * Every operation is guarded by the queue's monitor, the bulk operations take it once for all of their elements.
+ * The methods returning null rather than an {@link Optional} are meant for hot paths, they allocate nothing.
+ */
 public class CyclicQueue<Element> {
     private final int maxSize;
     private final Element[] data;
-    private Orientation orientation;
+    private int head;
+    private int size;
 
-    private record Orientation(int maxSize, int start, int size) {
-        public Orientation incrementStart() {
-            return new Orientation(maxSize, (start + 1) % maxSize, size);
+    public CyclicQueue(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be strictly positive");
         }
+        this.maxSize = maxSize;
+        @SuppressWarnings("unchecked")
+        Element[] data = (Element[]) new Object[maxSize];
+        this.data = data;
+        head = 0;
+        size = 0;
+    }
 
-        public Orientation incrementSize() {
-            return new Orientation(maxSize, start, size + 1);
-        }
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Optional<Element> put(Element element) {
+        return Optional.ofNullable(putOrOverwrite(element));
+    }
+
+    /**
+     * @return the oldest element if it was overwritten by this put, null otherwise
+     */
+    public synchronized Element putOrOverwrite(Element element) {
+        return putUnsafe(element);
+    }
 
-        public Orientation decrementSizeIfPossible() {
-            if (size == 0) {
-                return this;
+    /**
+     * Puts all the elements in their iteration order, as consecutive calls to {@link #put(Object)} would.
+     *
+     * @param onOverwritten called with every element that is overwritten, while the queue is locked
+     */
+    public synchronized void putAll(Collection<? extends Element> elements, Consumer<? super Element> onOverwritten) {
+        for (Element element : elements) {
+            Element overwritten = putUnsafe(element);
+            if (overwritten != null) {
+                onOverwritten.accept(overwritten);
             }
-            return new Orientation(maxSize, start, size - 1);
         }
     }
 
-    public CyclicQueue(int maxSize) {
-        this.maxSize = maxSize;
-        @SuppressWarnings("unchecked")
-        Element[] data = (Element[]) new Object[maxSize];
-        this.data = data;
-        orientation = new Orientation(maxSize, 0, 0);
+    public Optional<Element> pop() {
+        return Optional.ofNullable(poll());
     }
 
-    public int size() {
-        return orientation.size;
+    /**
+     * @return the oldest element which is removed, or null if the queue is empty
+     */
+    public synchronized Element poll() {
+        if (size == 0) {
+            return null;
+        }
+        Element element = data[head];
+        data[head] = null;
+        head = index(1);
+        size--;
+        return element;
     }
 
-    public synchronized Optional<Element> put(Element element) {
-        int position = (orientation.start + orientation.size) % maxSize;
-        Element datum = data[position];
-        data[position] = element;
-        orientation = (orientation.size < maxSize
-                       ? orientation.incrementSize()
-                       : orientation.incrementStart());
-        return Optional.ofNullable(datum);
+    /**
+     * Removes up to max of the oldest elements into target, in their order.
+     *
+     * @return the amount of elements that were moved
+     */
+    public synchronized int drainTo(Collection<? super Element> target, int max) {
+        int drained = Math.min(max, size);
+        for (int i = 0; i < drained; i++) {
+            target.add(data[head]);
+            data[head] = null;
+            head = index(1);
+        }
+        size -= drained;
+        return drained;
+    }
+
+    public Optional<Element> peak() {
+        return Optional.ofNullable(peek());
     }
 
-    public synchronized Optional<Element> pop() {
-        int position = orientation.start;
-        Element datum = data[position];
-        data[position] = null;
-        orientation = orientation.incrementStart().decrementSizeIfPossible();
-        return Optional.ofNullable(datum);
+    /**
+     * @return the oldest element, or null if the queue is empty
+     */
+    public synchronized Element peek() {
+        return size == 0 ? null : data[head];
+    }
+
+    private Element putUnsafe(Element element) {
+        int position = index(size);
+        Element overwritten = data[position];
+        data[position] = element;
+        if (size < maxSize) {
+            size++;
+        } else {
+            head = index(1);
+        }
+        return overwritten;
     }
 
-    public synchronized Optional<Element> peak() {
-        return Optional.ofNullable(data[orientation.start]);
+    private int index(int offset) {
+        int index = head + offset;
+        return index < maxSize ? index : index - maxSize;
     }
 }
@@ -0,0 +1,28 @@
+package aviel.task_runners;
+
+/**
+ * A task that is worthless once its deadline has passed.
+ * The deadline is a reading of the {@link Clock} of the storage that holds the task.
+ */
+public interface DeadlinedTask<Key> extends KeyedTask<Key> {
+    long deadline();
+
+    static <Key> DeadlinedTask<Key> of(Key key, long deadline, Runnable runnable) {
+        return new DeadlinedTask<>() {
+            @Override
+            public Key key() {
+                return key;
+            }
+
+            @Override
+            public long deadline() {
+                return deadline;
+            }
+
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        };
+    }
+}
@@ -1,10 +1,15 @@
 package aviel.task_runners;
 
+import aviel.task_runners.events.DrainWakeupEvent;
+import jdk.jfr.EventType;
+
 import java.time.Duration;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public record DurationForScheduler(long delay, TimeUnit unit) {
+    private static final EventType DRAIN_WAKEUP = EventType.getEventType(DrainWakeupEvent.class);
+
     public static DurationForScheduler from(Duration duration) {
         long amount;
         TimeUnit unit;
@@ -21,4 +26,34 @@ public record DurationForScheduler(long delay, TimeUnit unit) {
     public void schedule(ScheduledExecutorService scheduler, Runnable task) {
         scheduler.schedule(task, delay, unit);
     }
+
+    public void schedule(TaskScheduler scheduler, Runnable task) {
+        scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * Schedules as {@link #schedule(TaskScheduler, Runnable)} does, and while {@link DrainWakeupEvent} is enabled
+     * the task emits one on behalf of source, with the delay it was scheduled for and the delay it actually ran after.
+     */
+    public void schedule(TaskScheduler scheduler, Runnable task, Object source) {
+        if (!DRAIN_WAKEUP.isEnabled()) {
+            scheduler.schedule(task, delay, unit);
+            return;
+        }
+        long requestedDelay = Math.max(unit.toNanos(delay), 0);
+        long scheduledAt = System.nanoTime();
+        scheduler.schedule(() -> {
+            DrainWakeupEvent event = new DrainWakeupEvent();
+            event.begin();
+            long actualDelay = System.nanoTime() - scheduledAt;
+            try {
+                task.run();
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.commit(source, requestedDelay, actualDelay);
+                }
+            }
+        }, delay, unit);
+    }
 }
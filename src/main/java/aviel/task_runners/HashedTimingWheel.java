@@ -0,0 +1,327 @@
+package aviel.task_runners;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel, a {@link TaskScheduler} meant to be shared by many limiters with a single ticker thread.
+ * Scheduling and cancelling a timeout are O(1), a timeout is placed in the bucket of the tick it expires on,
+ * along with the amount of whole wheel rounds that are left until it does.
+ * Timeouts are expired at tick granularity, that is, up to a tick later than their delay.
+ * New and cancelled timeouts are handed to the ticker thread through lock-free queues, only the ticker thread touches the buckets.
+ * Expired tasks are executed by the provided executor, by default on the ticker thread itself.
+ * The class is final since the ticker thread is started by the constructor.
+ */
+public final class HashedTimingWheel implements TaskScheduler, AutoCloseable {
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added;
+    private final Queue<Timeout> cancelled;
+    private final Executor expiredExecutor;
+    private final Thread ticker;
+    private final long startTime;
+    private volatile boolean stopped;
+    private long tick;
+
+    public HashedTimingWheel(Duration tickDuration, int ticksPerWheel) {
+        this(tickDuration, ticksPerWheel, runnable -> {
+            Thread thread = new Thread(runnable, HashedTimingWheel.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }, Runnable::run);
+    }
+
+    /**
+     * @param tickDuration    the granularity of the wheel, timeouts expire on the first tick after their deadline.
+     * @param ticksPerWheel   the amount of buckets, rounded up to a power of two.
+     *                        Timeouts further than a whole wheel away are passed over once every round until their round comes.
+     * @param threadFactory   creates the single ticker thread.
+     * @param expiredExecutor executes the expired tasks.
+     */
+    public HashedTimingWheel(Duration tickDuration, int ticksPerWheel,
+                             ThreadFactory threadFactory, Executor expiredExecutor) {
+        if (!tickDuration.isPositive()) {
+            throw new IllegalArgumentException("tickDuration must be strictly positive");
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+        }
+        tickNanos = Math.max(Utils.toNanosSaturated(tickDuration), 1);
+        int length = 1;
+        while (length < ticksPerWheel) {
+            length <<= 1;
+        }
+        buckets = new Bucket[length];
+        for (int i = 0; i < length; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = length - 1;
+        added = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        this.expiredExecutor = expiredExecutor;
+        stopped = false;
+        tick = 0;
+        startTime = System.nanoTime();
+        ticker = threadFactory.newThread(this::tickerLoop);
+        ticker.start();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        newTimeout(task, delay, unit);
+    }
+
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new RejectedExecutionException("timing wheel is closed");
+        }
+        long delayNanos = Math.max(unit.toNanos(delay), 0);
+        long sinceStart = System.nanoTime() - startTime;
+        long deadline = sinceStart + Math.min(delayNanos, Long.MAX_VALUE - sinceStart);
+        Timeout timeout = new Timeout(this, task, deadline);
+        added.add(timeout);
+        if (stopped && timeout.state.compareAndSet(Timeout.PENDING, Timeout.CANCELLED)) {
+            // raced with stop, which did not collect it
+            throw new RejectedExecutionException("timing wheel is closed");
+        }
+        return timeout;
+    }
+
+    /**
+     * Same as {@link #stop()}, dropping the timeouts that did not expire.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Stops the ticker thread, waiting for it unless called by an expired task on the ticker thread itself.
+     * The timeouts that did not expire are cancelled and returned, so their tasks are never executed by the wheel.
+     * Waiting is not interruptible, an interrupt that arrives meanwhile is kept for the caller.
+     *
+     * @return the timeouts that were cancelled by stopping the wheel, empty if it was already stopped
+     */
+    public List<Timeout> stop() {
+        if (stopped) {
+            return List.of();
+        }
+        stopped = true;
+        ticker.interrupt();
+        if (Thread.currentThread() != ticker) {
+            joinUninterruptibly();
+        }
+        List<Timeout> unexpired = new ArrayList<>();
+        // the buckets are only read, since the ticker thread may still be expiring one of them if it is the caller
+        for (Bucket bucket : buckets) {
+            for (Timeout timeout = bucket.first; timeout != null; timeout = timeout.next) {
+                cancelOnStop(timeout, unexpired);
+            }
+        }
+        for (Timeout timeout = added.poll(); timeout != null; timeout = added.poll()) {
+            cancelOnStop(timeout, unexpired);
+        }
+        cancelled.clear();
+        return unexpired;
+    }
+
+    private static void cancelOnStop(Timeout timeout, List<Timeout> unexpired) {
+        if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.CANCELLED)) {
+            unexpired.add(timeout);
+        }
+    }
+
+    private void joinUninterruptibly() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ticker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tickerLoop() {
+        while (!stopped) {
+            long tickDeadline = awaitNextTick();
+            if (tickDeadline < 0) {
+                continue;
+            }
+            removeCancelled();
+            transferAdded();
+            buckets[(int) (tick & mask)].expire(tickDeadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @return the time since start at which the current tick ends, or -1 if interrupted while waiting for it
+     */
+    private long awaitNextTick() {
+        long tickDeadline = (tick + 1) * tickNanos;
+        while (true) {
+            long untilTick = tickDeadline - (System.nanoTime() - startTime);
+            if (untilTick <= 0) {
+                return tickDeadline;
+            }
+            LockSupport.parkNanos(this, untilTick);
+            if (Thread.interrupted() && stopped) {
+                return -1;
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) >> Integer.numberOfTrailingZeros(buckets.length);
+            buckets[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        while (true) {
+            Timeout timeout = cancelled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+            try {
+                expiredExecutor.execute(timeout.task);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A scheduled task that can be cancelled as long as it has not expired.
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedTimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        /*
+         * the following are touched only by the ticker thread
+         */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedTimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(PENDING);
+        }
+
+        /**
+         * @return true if the task is cancelled by this call, false if it has already expired or was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * An intrusive doubly linked list of timeouts, touched only by the ticker thread.
+     */
+    private final class Bucket {
+        private Timeout first;
+        private Timeout last;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (last == null) {
+                first = last = timeout;
+            } else {
+                last.next = timeout;
+                timeout.prev = last;
+                last = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                first = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                last = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        private void expire(long tickDeadline) {
+            Timeout timeout = first;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline > tickDeadline) {
+                        throw new ThisShouldNotHappen("timeout was placed in a bucket of a tick before its deadline");
+                    }
+                    HashedTimingWheel.this.expire(timeout);
+                } else if (timeout.state.get() == Timeout.CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package aviel.task_runners;
+
+import java.util.Objects;
+
+/**
+ * A lock-free bounded queue for many producers and a single consumer, such as submitting threads and a pending drain.
+ * Producers claim positions by compare and set on the tail.
+ * Overwriting producers take elements off the head as well, so it remains correct with them taking part as consumers.
+ */
+public final class MpscCyclicQueue<Element> extends SequencedCyclicQueue<Element> {
+    public MpscCyclicQueue(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean offer(Element element) {
+        Objects.requireNonNull(element);
+        while (true) {
+            long position = tail.get();
+            int slot = slot(position);
+            long turn = sequences.getAcquire(slot) - position;
+            if (turn == 0) {
+                if (!hasRoom(position)) {
+                    return false;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.setPlain(slot, element);
+                    sequences.setRelease(slot, position + 1);
+                    return true;
+                }
+            } else if (turn < 0) {
+                return false;
+            }
+        }
+    }
+}
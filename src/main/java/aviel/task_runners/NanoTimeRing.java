@@ -0,0 +1,145 @@
+package aviel.task_runners;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A fixed capacity ring of {@link System#nanoTime()} stamps ordered from the oldest to the newest.
+ * The backing array may start smaller than the capacity, in which case it grows on demand up to the capacity,
+ * and it is shrunk back only when asked to.
+ * It is not thread safe, its owner is expected to guard it.
+ */
+public class NanoTimeRing {
+    private final int capacity;
+    private final int initialCapacity;
+    private long[] stamps;
+    private int start;
+    private int size;
+
+    public NanoTimeRing(int capacity) {
+        this(capacity, capacity);
+    }
+
+    public NanoTimeRing(int initialCapacity, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be strictly positive");
+        }
+        if (initialCapacity < 1 || initialCapacity > capacity) {
+            throw new IllegalArgumentException("initialCapacity must be strictly positive and no greater than capacity");
+        }
+        this.capacity = capacity;
+        this.initialCapacity = initialCapacity;
+        stamps = new long[initialCapacity];
+        start = 0;
+        size = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int remainingCapacity() {
+        return capacity - size;
+    }
+
+    public void addLast(long stamp) {
+        if (isFull()) {
+            throw new IllegalStateException("ring is full");
+        }
+        ensureRoom(1);
+        stamps[index(size)] = stamp;
+        size++;
+    }
+
+    /**
+     * Adds the same stamp times times, as when times tasks are admitted on the same instant.
+     */
+    public void addLast(long stamp, int times) {
+        if (times > remainingCapacity()) {
+            throw new IllegalStateException("ring has no room for " + times + " stamps");
+        }
+        ensureRoom(times);
+        for (int i = 0; i < times; i++) {
+            stamps[index(size)] = stamp;
+            size++;
+        }
+    }
+
+    public long getFirst() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("ring is empty");
+        }
+        return stamps[start];
+    }
+
+    /**
+     * @param offset the position of the stamp counting from the oldest, that is 0
+     */
+    public long get(int offset) {
+        if (offset < 0 || offset >= size) {
+            throw new IndexOutOfBoundsException("offset " + offset + " is out of a ring of size " + size);
+        }
+        return stamps[index(offset)];
+    }
+
+    public void removeFirst() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("ring is empty");
+        }
+        start = index(1);
+        size--;
+    }
+
+    /**
+     * Removes every stamp that is older than now by more than window.
+     */
+    public void removeOlderThan(long now, long window) {
+        while (size > 0 && now - stamps[start] > window) {
+            start = index(1);
+            size--;
+        }
+    }
+
+    /**
+     * Shrinks the backing array once no more than a quarter of it is used, as when a burst that grew it has passed,
+     * to twice the size of the ring but no less than the initial capacity.
+     */
+    public void shrink() {
+        if (stamps.length == initialCapacity || size > stamps.length / 4) {
+            return;
+        }
+        resize(Math.max(initialCapacity, size * 2));
+    }
+
+    private void ensureRoom(int added) {
+        if (size + added <= stamps.length) {
+            return;
+        }
+        resize((int) Math.min(capacity, Math.max((long) stamps.length * 2, size + added)));
+    }
+
+    private void resize(int length) {
+        long[] resized = new long[length];
+        for (int i = 0; i < size; i++) {
+            resized[i] = stamps[index(i)];
+        }
+        stamps = resized;
+        start = 0;
+    }
+
+    private int index(int offset) {
+        int index = start + offset;
+        return index < stamps.length ? index : index - stamps.length;
+    }
+}
@@ -0,0 +1,53 @@
+package aviel.task_runners;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A long counter padded on both sides, so counters that are written by different threads do not share a cache line.
+ * The padding is in super and sub classes since fields of a single class may be reordered by the JVM.
+ */
+final class PaddedSequence extends PaddedSequenceValue {
+    @SuppressWarnings("unused")
+    private long p10, p11, p12, p13, p14, p15, p16;
+
+    PaddedSequence(long initialValue) {
+        VALUE.setRelease(this, initialValue);
+    }
+
+    long get() {
+        return (long) VALUE.getVolatile(this);
+    }
+
+    long getPlain() {
+        return (long) VALUE.get(this);
+    }
+
+    void setRelease(long value) {
+        VALUE.setRelease(this, value);
+    }
+
+    boolean compareAndSet(long expected, long value) {
+        return VALUE.compareAndSet(this, expected, value);
+    }
+}
+
+abstract class PaddedSequenceValue extends PaddedSequenceLhs {
+    static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(PaddedSequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private volatile long value;
+}
+
+abstract class PaddedSequenceLhs {
+    @SuppressWarnings("unused")
+    private long p00, p01, p02, p03, p04, p05, p06;
+}
@@ -0,0 +1,115 @@
+package aviel.task_runners;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lock-free bounded ring in which every slot holds a sequence number that tells whose turn it is on the slot,
+ * a producer of position p may write a slot whose sequence is p and publishes it by setting it to p + 1,
+ * the consumer of position p may read a slot whose sequence is p + 1 and frees it by setting it to p + slots.
+ * A single slot could not tell a published element from a free slot of the next position, so a capacity of 1 is held in two slots,
+ * and producers then also check the head to keep to a single element.
+ * The head is advanced by compare and set, since a producer that overwrites the oldest element takes it off the head as well.
+ * How producers claim positions is up to the subclasses.
+ */
+abstract sealed class SequencedCyclicQueue<Element> permits MpscCyclicQueue, SpscCyclicQueue {
+    final int capacity;
+    final int slots;
+    final AtomicLongArray sequences;
+    final AtomicReferenceArray<Element> elements;
+    final PaddedSequence head;
+    final PaddedSequence tail;
+
+    SequencedCyclicQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be strictly positive");
+        }
+        this.capacity = capacity;
+        slots = Math.max(2, capacity);
+        sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+        elements = new AtomicReferenceArray<>(slots);
+        head = new PaddedSequence(0);
+        tail = new PaddedSequence(0);
+    }
+
+    /**
+     * @return true if the element was added, false if the queue is full
+     */
+    public abstract boolean offer(Element element);
+
+    /**
+     * Adds the element, taking off the oldest elements for as long as the queue is full, as {@link CyclicQueue#put(Object)} does.
+     *
+     * @param onEvicted called with every element that is taken off to make room for this one
+     */
+    public void put(Element element, Consumer<? super Element> onEvicted) {
+        Objects.requireNonNull(element);
+        while (!offer(element)) {
+            if (tail.get() - head.get() < capacity) {
+                // a consumer has taken an element off but has not yet freed its slot
+                Thread.onSpinWait();
+                continue;
+            }
+            Element evicted = poll();
+            if (evicted != null) {
+                onEvicted.accept(evicted);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element which is removed, or null if there is none,
+     * or if the oldest element is claimed by a producer that has not yet published it.
+     */
+    public Element poll() {
+        while (true) {
+            long position = head.get();
+            int slot = slot(position);
+            long turn = sequences.getAcquire(slot) - (position + 1);
+            if (turn == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    Element element = elements.getPlain(slot);
+                    elements.setPlain(slot, null);
+                    sequences.setRelease(slot, position + slots);
+                    return element;
+                }
+            } else if (turn < 0) {
+                return null;
+            }
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the amount of elements, it is only an estimate while the queue is concurrently modified
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    final int slot(long position) {
+        return (int) (position % slots);
+    }
+
+    /**
+     * @return false if the queue holds capacity elements while there are more slots than that, so the slot of the position may be free
+     */
+    final boolean hasRoom(long position) {
+        return slots == capacity || position - head.get() < capacity;
+    }
+}
@@ -0,0 +1,27 @@
+package aviel.task_runners;
+
+import java.util.Objects;
+
+/**
+ * A lock-free bounded queue for a single producer and a single consumer.
+ * Only the producer writes the tail, so positions are claimed without compare and set.
+ */
+public final class SpscCyclicQueue<Element> extends SequencedCyclicQueue<Element> {
+    public SpscCyclicQueue(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean offer(Element element) {
+        Objects.requireNonNull(element);
+        long position = tail.getPlain();
+        int slot = slot(position);
+        if (sequences.getAcquire(slot) != position || !hasRoom(position)) {
+            return false;
+        }
+        elements.setPlain(slot, element);
+        sequences.setRelease(slot, position + 1);
+        tail.setRelease(position + 1);
+        return true;
+    }
+}
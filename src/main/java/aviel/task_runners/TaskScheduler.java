@@ -0,0 +1,16 @@
+package aviel.task_runners;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one-shot tasks after a delay, the limiters use it to wake up for their pending tasks.
+ */
+@FunctionalInterface
+public interface TaskScheduler {
+    void schedule(Runnable task, long delay, TimeUnit unit);
+
+    static TaskScheduler of(ScheduledExecutorService scheduler) {
+        return scheduler::schedule;
+    }
+}
@@ -1,9 +1,14 @@
 package aviel.task_runners;
 
-import java.time.Instant;
-
-public record Timestamped<Value>(Instant timestamp, Value get) {
+/**
+ * @param nanoTime the reading of the {@link Clock} at which the value was stamped
+ */
+public record Timestamped<Value>(long nanoTime, Value get) {
     public static <Value> Timestamped<Value> create(Value value) {
-        return new Timestamped<>(Instant.now(), value);
+        return create(Clock.system(), value);
+    }
+
+    public static <Value> Timestamped<Value> create(Clock clock, Value value) {
+        return new Timestamped<>(clock.nanoTime(), value);
     }
 }
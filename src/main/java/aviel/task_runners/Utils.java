@@ -8,4 +8,15 @@ public class Utils {
         return Duration.ofSeconds(subtrahend.getEpochSecond() - minuend.getEpochSecond())
                        .plusNanos(subtrahend.getNano() - minuend.getNano());
     }
+
+    /**
+     * @return the duration in nanoseconds, or {@link Long#MAX_VALUE} when it does not fit in a long
+     */
+    public static long toNanosSaturated(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
 }
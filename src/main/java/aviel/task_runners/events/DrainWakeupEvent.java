@@ -0,0 +1,49 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.Objects;
+
+/**
+ * A scheduled drain of pending tasks that has woken up, its duration covers the drain itself.
+ */
+@Name("aviel.task_runners.DrainWakeup")
+@Label("Drain Wakeup")
+@Description("A limiter woke up to fetch its pending tasks")
+@Category({"Task Runners", "Scheduler"})
+@StackTrace(false)
+public class DrainWakeupEvent extends Event {
+    @Label("Source")
+    @Description("Identity of the limiter that scheduled the drain")
+    public String source;
+
+    @Label("Requested Delay")
+    @Timespan(Timespan.NANOSECONDS)
+    public long requestedDelay;
+
+    @Label("Actual Delay")
+    @Timespan(Timespan.NANOSECONDS)
+    public long actualDelay;
+
+    @Label("Lag")
+    @Description("How late the scheduler woke the drain up")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lag;
+
+    /**
+     * Fills in the fields and commits, to be called only once {@link #shouldCommit()} is true.
+     */
+    public void commit(Object source, long requestedDelay, long actualDelay) {
+        this.source = Objects.toIdentityString(source);
+        this.requestedDelay = requestedDelay;
+        this.actualDelay = actualDelay;
+        lag = actualDelay - requestedDelay;
+        commit();
+    }
+}
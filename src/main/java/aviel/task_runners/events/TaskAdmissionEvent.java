@@ -0,0 +1,19 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The decision of a limiter on a submitted task, its duration covers waiting for the limiter's lock.
+ */
+@Name("aviel.task_runners.TaskAdmission")
+@Label("Task Admission")
+@Description("A limiter either admitted a submitted task for execution or pended it")
+@Category({"Task Runners", "Limiter"})
+public class TaskAdmissionEvent extends TaskEvent {
+    @Label("Admitted")
+    @Description("True if the task was executed right away, false if it was pended")
+    public boolean admitted;
+}
@@ -0,0 +1,13 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("aviel.task_runners.TaskDisposed")
+@Label("Task Disposed")
+@Description("A storage discarded a pended task, it would never be executed")
+@Category({"Task Runners", "Storage"})
+public class TaskDisposedEvent extends TaskEvent {
+}
@@ -0,0 +1,32 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import java.util.Objects;
+
+/**
+ * The fields every task event carries.
+ * Emitters call {@link #commit(Object, Object)} only once {@link #shouldCommit()} is true, as the fields cost a string each.
+ */
+@StackTrace(false)
+public abstract class TaskEvent extends Event {
+    @Label("Source")
+    @Description("Identity of the limiter or storage that emitted the event")
+    public String source;
+
+    @Label("Key")
+    @Description("Key of the task, empty if the task is not keyed")
+    public String key;
+
+    /**
+     * Fills in the source and the key of the task, if it is keyed, and commits.
+     */
+    public void commit(Object source, Object key) {
+        this.source = Objects.toIdentityString(source);
+        this.key = key == null ? null : String.valueOf(key);
+        commit();
+    }
+}
@@ -0,0 +1,13 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("aviel.task_runners.TaskFetched")
+@Label("Task Fetched")
+@Description("A storage handed a pended task back for execution")
+@Category({"Task Runners", "Storage"})
+public class TaskFetchedEvent extends TaskEvent {
+}
@@ -0,0 +1,13 @@
+package aviel.task_runners.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("aviel.task_runners.TaskStored")
+@Label("Task Stored")
+@Description("A storage stored a pended task")
+@Category({"Task Runners", "Storage"})
+public class TaskStoredEvent extends TaskEvent {
+}
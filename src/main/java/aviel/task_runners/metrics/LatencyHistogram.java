@@ -0,0 +1,92 @@
+package aviel.task_runners.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of nanosecond latencies in log-linear buckets.
+ * Every power of two is split into SUB_BUCKETS linear buckets, so a recorded value is known within 25% of itself.
+ * Recording is a few atomic increments, a snapshot may interleave with concurrent recordings and is therefore not exactly consistent.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        sum = new LongAdder();
+    }
+
+    /**
+     * @param nanos the latency, negative latencies are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(count, sum.sum(), snapshotCounts);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBoundOf(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBoundOf(bucket + 1) - 1;
+    }
+
+    /**
+     * @param counts the amount of recorded values per bucket, it is owned by the snapshot and must not be modified
+     */
+    public record Snapshot(long count, long sum, long[] counts) {
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the bucket that holds the quantile, 0 when nothing was recorded
+         */
+        public long quantile(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("quantile must be between 0 and 1");
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
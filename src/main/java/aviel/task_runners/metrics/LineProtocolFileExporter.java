@@ -0,0 +1,284 @@
+package aviel.task_runners.metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes snapshots of registered {@link RateLimiterMetrics} in InfluxDB line protocol to memory-mapped segment files.
+ * Every export writes one batch: a point per registered metrics and a point per key with stored tasks,
+ * it is meant to run periodically off the limiters' hot path, e.g. by {@link #start(ScheduledExecutorService, Duration)}.
+ * A segment is rotated when the next batch does not fit in it, and only the newest maxSegments segments are kept.
+ * A rotated segment is truncated to its content, where the platform does not allow truncating a mapped file
+ * its unwritten tail is filled with newlines instead, which line protocol readers skip as empty lines.
+ * A segment left by a process that crashed is as long as a whole segment, with a tail of NUL bytes and possibly a cut line,
+ * so on construction the segments already in the directory are truncated after their last complete line.
+ */
+public class LineProtocolFileExporter implements AutoCloseable {
+    private final Path directory;
+    private final String filePrefix;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final List<Source> sources;
+    private final Deque<Path> segments;
+    private int segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private ScheduledFuture<?> scheduledExport;
+
+    /**
+     * @param filePrefix   segments are named filePrefix-index.lp, indices continue after those already in the directory,
+     *                     which are recovered from a crash of the process that wrote them.
+     * @param segmentBytes the size of a segment, a batch that is larger than a whole segment is dropped.
+     * @param maxSegments  the amount of segments that are kept, the oldest segment of this exporter is deleted upon rotation beyond it.
+     */
+    public LineProtocolFileExporter(Path directory, String filePrefix, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("segmentBytes must be strictly positive");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be strictly positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.filePrefix = filePrefix;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        sources = new ArrayList<>();
+        segments = new ArrayDeque<>();
+        segmentIndex = recoverSegments();
+        openSegment();
+    }
+
+    /**
+     * Points of keys whose string is empty have no key tag, since line protocol does not allow empty tag values.
+     *
+     * @param measurement the measurement of the points of metrics, points of keys are of measurement_keys
+     * @param tags        tags of every point of metrics, e.g. the limiter's type and parameters
+     * @throws IllegalArgumentException if the measurement, a tag key or a tag value is empty, which line protocol does not allow
+     */
+    public synchronized void register(String measurement, Map<String, String> tags, RateLimiterMetrics metrics) {
+        if (measurement.isEmpty()) {
+            throw new IllegalArgumentException("measurement must not be empty");
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (tag.getKey().isEmpty() || tag.getValue().isEmpty()) {
+                throw new IllegalArgumentException("tag keys and values must not be empty");
+            }
+        }
+        sources.add(new Source(measurement, tags, metrics));
+    }
+
+    /**
+     * Exports every period on the given scheduler until closed.
+     */
+    public synchronized void start(ScheduledExecutorService scheduler, Duration period) {
+        if (scheduledExport != null) {
+            throw new IllegalStateException("exporter is already started");
+        }
+        long periodNanos = period.toNanos();
+        scheduledExport = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                export();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Writes a batch of the current snapshots of all the registered metrics.
+     */
+    public synchronized void export() throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("exporter is closed");
+        }
+        StringBuilder batch = new StringBuilder();
+        long timestamp = epochNanos(Instant.now());
+        for (Source source : sources) {
+            source.appendTo(batch, timestamp);
+        }
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > segmentBytes) {
+            return;
+        }
+        if (bytes.length > buffer.remaining()) {
+            rotate();
+        }
+        buffer.put(bytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduledExport != null) {
+            scheduledExport.cancel(false);
+        }
+        if (channel != null) {
+            closeSegment();
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        openSegment();
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path segment = directory.resolve(filePrefix + "-" + segmentIndex++ + ".lp");
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segments.addLast(segment);
+    }
+
+    private void closeSegment() throws IOException {
+        int written = buffer.position();
+        buffer.force();
+        try {
+            channel.truncate(written);
+        } catch (IOException e) {
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) '\n');
+            }
+            buffer.force();
+        }
+        channel.close();
+    }
+
+    /**
+     * @return the index that follows those of the segments already in the directory
+     */
+    private int recoverSegments() throws IOException {
+        int next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, filePrefix + "-*.lp")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String index = name.substring(filePrefix.length() + 1, name.length() - ".lp".length());
+                try {
+                    next = Math.max(next, Integer.parseInt(index) + 1);
+                } catch (NumberFormatException ignored) {
+                    continue;
+                }
+                truncateAfterLastLine(file);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reads the segment backwards up to its last newline, so that a segment that was closed properly is left as it is.
+     */
+    private static void truncateAfterLastLine(Path segment) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(8192);
+            long end = segmentChannel.size();
+            while (end > 0) {
+                int length = (int) Math.min(chunk.capacity(), end);
+                long start = end - length;
+                chunk.clear().limit(length);
+                while (chunk.hasRemaining()) {
+                    if (segmentChannel.read(chunk, start + chunk.position()) < 0) {
+                        break;
+                    }
+                }
+                for (int i = length - 1; i >= 0; i--) {
+                    if (chunk.get(i) == '\n') {
+                        if (start + i + 1 < segmentChannel.size()) {
+                            segmentChannel.truncate(start + i + 1);
+                        }
+                        return;
+                    }
+                }
+                end = start;
+            }
+            segmentChannel.truncate(0);
+        }
+    }
+
+    private static long epochNanos(Instant instant) {
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    private record Source(String measurement, Map<String, String> tags, RateLimiterMetrics metrics) {
+        private void appendTo(StringBuilder batch, long timestamp) {
+            RateLimiterMetrics.Snapshot snapshot = metrics.snapshot();
+            appendSeries(batch, measurement);
+            batch.append(' ');
+            appendField(batch, "submitted", snapshot.submitted()).append(',');
+            appendField(batch, "executed", snapshot.executed()).append(',');
+            appendField(batch, "pended", snapshot.pended()).append(',');
+            appendField(batch, "fetched", snapshot.fetched()).append(',');
+            appendField(batch, "disposed", snapshot.disposed()).append(',');
+            appendField(batch, "stored", snapshot.stored()).append(',');
+            appendLatencies(batch, "pend_to_run", snapshot.pendToRun()).append(',');
+            appendLatencies(batch, "inter_execution", snapshot.interExecution());
+            batch.append(' ').append(timestamp).append('\n');
+            for (Map.Entry<Object, Long> occupancy : snapshot.occupancyByKey().entrySet()) {
+                appendSeries(batch, measurement + "_keys");
+                String key = String.valueOf(occupancy.getKey());
+                if (!key.isEmpty()) {
+                    batch.append(',').append("key").append('=');
+                    appendEscaped(batch, key, true);
+                }
+                batch.append(' ');
+                appendField(batch, "stored", occupancy.getValue());
+                batch.append(' ').append(timestamp).append('\n');
+            }
+        }
+
+        private void appendSeries(StringBuilder batch, String seriesMeasurement) {
+            appendEscaped(batch, seriesMeasurement, false);
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                batch.append(',');
+                appendEscaped(batch, tag.getKey(), true);
+                batch.append('=');
+                appendEscaped(batch, tag.getValue(), true);
+            }
+        }
+
+        private static StringBuilder appendLatencies(StringBuilder batch, String name, LatencyHistogram.Snapshot latencies) {
+            appendField(batch, name + "_count", latencies.count()).append(',');
+            appendField(batch, name + "_mean_ns", (long) latencies.mean()).append(',');
+            appendField(batch, name + "_p50_ns", latencies.quantile(0.5)).append(',');
+            appendField(batch, name + "_p99_ns", latencies.quantile(0.99)).append(',');
+            return appendField(batch, name + "_max_ns", latencies.quantile(1));
+        }
+
+        private static StringBuilder appendField(StringBuilder batch, String name, long value) {
+            return batch.append(name).append('=').append(value).append('i');
+        }
+
+        /**
+         * Escapes as line protocol requires, measurements escape commas and spaces, tag keys and values escape equal signs as well.
+         * Newlines cannot be escaped, they are replaced by spaces.
+         */
+        private static void appendEscaped(StringBuilder batch, String value, boolean isTag) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i) == '\n' ? ' ' : value.charAt(i);
+                if (c == ',' || c == ' ' || (isTag && c == '=')) {
+                    batch.append('\\');
+                }
+                batch.append(c);
+            }
+        }
+    }
+}
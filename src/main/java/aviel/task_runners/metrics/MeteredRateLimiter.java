@@ -0,0 +1,28 @@
+package aviel.task_runners.metrics;
+
+import aviel.task_runners.rate_limiters.RateLimiter;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+class MeteredRateLimiter<Task> implements RateLimiter<Task> {
+    private final RateLimiter<Task> limiter;
+    private final LongAdder submitted;
+
+    MeteredRateLimiter(RateLimiter<Task> limiter, LongAdder submitted) {
+        this.limiter = limiter;
+        this.submitted = submitted;
+    }
+
+    @Override
+    public void submitTask(Task task) {
+        submitted.increment();
+        limiter.submitTask(task);
+    }
+
+    @Override
+    public void submitAll(Collection<? extends Task> tasks) {
+        submitted.add(tasks.size());
+        limiter.submitAll(tasks);
+    }
+}
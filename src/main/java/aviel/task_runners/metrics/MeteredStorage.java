@@ -0,0 +1,156 @@
+package aviel.task_runners.metrics;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.Storage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Records the stored instant of every task by its identity, so tasks that are equal to each other are still told apart.
+ * A task instance that is stored again before it was fetched is timed from its latest storing.
+ * A storage that hands back other instances than those it was given, as a SpillingStorage does with the tasks it decoded,
+ * has those tasks counted and their keys tracked, but their time in the storage is unknown and is not recorded.
+ * The instants are held by weak references to the stored instances, so the instants of instances the storage dropped are dropped with them.
+ */
+class MeteredStorage<Task> implements Storage<Task> {
+    private final Storage<Task> storage;
+    private final RateLimiterMetrics metrics;
+    private final ConcurrentHashMap<Identity, Long> storedAt;
+    private final ReferenceQueue<Object> dropped;
+
+    MeteredStorage(Storage<Task> storage, RateLimiterMetrics metrics) {
+        this.storage = storage;
+        this.metrics = metrics;
+        storedAt = new ConcurrentHashMap<>();
+        dropped = new ReferenceQueue<>();
+        storage.addDisposalListener(this::onDisposed);
+    }
+
+    @Override
+    public void addDisposalListener(Consumer<? super Task> listener) {
+        storage.addDisposalListener(listener);
+    }
+
+    /**
+     * The task is counted before it is stored, so that a concurrent fetch of it finds it counted, and the count is rolled back if the storage throws.
+     */
+    @Override
+    public void store(Task task) {
+        store(task, metrics.nanoTime());
+    }
+
+    /**
+     * The tasks are stored one by one, so when the storage throws, the tasks it stored before are known and remain counted.
+     */
+    @Override
+    public void storeAll(Collection<? extends Task> tasks) {
+        long now = metrics.nanoTime();
+        for (Task task : tasks) {
+            store(task, now);
+        }
+    }
+
+    private void store(Task task, long now) {
+        onStored(task, now);
+        try {
+            storage.store(task);
+        } catch (RuntimeException | Error e) {
+            onRejected(task);
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<Task> fetch() {
+        Optional<Task> task = storage.fetch();
+        task.ifPresent(fetched -> onFetched(fetched, metrics.nanoTime()));
+        return task;
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> tasks = storage.fetchUpTo(max);
+        if (!tasks.isEmpty()) {
+            long now = metrics.nanoTime();
+            for (Task task : tasks) {
+                onFetched(task, now);
+            }
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return storage.isEmpty();
+    }
+
+    private void onStored(Task task, long now) {
+        expungeDropped();
+        storedAt.put(new Identity(task, dropped), now);
+        metrics.onPended(keyOf(task));
+    }
+
+    private void onRejected(Task task) {
+        storedAt.remove(new Identity(task, null));
+        metrics.onRejected(keyOf(task));
+    }
+
+    private void onFetched(Task task, long now) {
+        Long stored = storedAt.remove(new Identity(task, null));
+        if (stored == null) {
+            metrics.onFetched(keyOf(task));
+        } else {
+            metrics.onFetched(keyOf(task), now - stored);
+        }
+    }
+
+    private void onDisposed(Task task) {
+        storedAt.remove(new Identity(task, null));
+        metrics.onDisposed(keyOf(task));
+    }
+
+    private void expungeDropped() {
+        for (Object identity = dropped.poll(); identity != null; identity = dropped.poll()) {
+            storedAt.remove(identity);
+        }
+    }
+
+    private static Object keyOf(Object task) {
+        return task instanceof KeyedTask<?> keyedTask ? keyedTask.key() : null;
+    }
+
+    /**
+     * An identity that was cleared equals only itself, so it can still be removed once its task was collected.
+     */
+    private static final class Identity extends WeakReference<Object> {
+        private final int hash;
+
+        private Identity(Object task, ReferenceQueue<Object> dropped) {
+            super(task, dropped);
+            hash = System.identityHashCode(task);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof Identity identity)) {
+                return false;
+            }
+            Object task = get();
+            return task != null && identity.get() == task;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package aviel.task_runners.metrics;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.pending_tasks.Storage;
+import aviel.task_runners.rate_limiters.RateLimiter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters, latency histograms and per-key storage occupancy of a single limiter.
+ * The metrics are collected by decorating what the limiter is built from:
+ * its storages by {@link #storage(Supplier)}, its executor by {@link #executor(Executor)} and the limiter itself by {@link #limiter(RateLimiter)}.
+ * A limiter that is built without the decorators carries no metrics code at all, so disabled metrics cost nothing.
+ * Recording never takes the limiter's lock and neither does {@link #snapshot()}.
+ */
+public class RateLimiterMetrics {
+    private static final long NO_EXECUTION = Long.MIN_VALUE;
+
+    private final Clock clock;
+    private final LongAdder submitted;
+    private final LongAdder executed;
+    private final LongAdder pended;
+    private final LongAdder fetched;
+    private final LongAdder disposed;
+    private final LatencyHistogram pendToRun;
+    private final LatencyHistogram interExecution;
+    private final AtomicLong lastExecution;
+    private final ConcurrentHashMap<Object, Long> occupancyByKey;
+
+    public RateLimiterMetrics() {
+        this(Clock.system());
+    }
+
+    public RateLimiterMetrics(Clock clock) {
+        this.clock = clock;
+        submitted = new LongAdder();
+        executed = new LongAdder();
+        pended = new LongAdder();
+        fetched = new LongAdder();
+        disposed = new LongAdder();
+        pendToRun = new LatencyHistogram();
+        interExecution = new LatencyHistogram();
+        lastExecution = new AtomicLong(NO_EXECUTION);
+        occupancyByKey = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return a creator of storages that count the pended, fetched and disposed tasks of the created storages,
+     * the time tasks spend between being stored and being fetched and, for keyed tasks, the amount of stored tasks per key.
+     */
+    public <Task> Supplier<Storage<Task>> storage(Supplier<Storage<Task>> pendingTasksCreator) {
+        return () -> new MeteredStorage<>(pendingTasksCreator.get(), this);
+    }
+
+    /**
+     * @return an executor that counts the executed tasks and the intervals between consecutive executions
+     */
+    public Executor executor(Executor executor) {
+        return task -> {
+            onExecuted();
+            executor.execute(task);
+        };
+    }
+
+    /**
+     * @return a limiter that counts the submitted tasks
+     */
+    public <Task> RateLimiter<Task> limiter(RateLimiter<Task> limiter) {
+        return new MeteredRateLimiter<>(limiter, submitted);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(submitted.sum(),
+                            executed.sum(),
+                            pended.sum(),
+                            fetched.sum(),
+                            disposed.sum(),
+                            Map.copyOf(occupancyByKey),
+                            pendToRun.snapshot(),
+                            interExecution.snapshot());
+    }
+
+    long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    void onPended(Object key) {
+        pended.increment();
+        if (key != null) {
+            occupancyByKey.merge(key, 1L, Long::sum);
+        }
+    }
+
+    void onRejected(Object key) {
+        pended.decrement();
+        leave(key);
+    }
+
+    void onFetched(Object key, long pendedNanos) {
+        pendToRun.record(pendedNanos);
+        onFetched(key);
+    }
+
+    /**
+     * Counts a fetched task whose storing instant is unknown.
+     */
+    void onFetched(Object key) {
+        fetched.increment();
+        leave(key);
+    }
+
+    void onDisposed(Object key) {
+        disposed.increment();
+        leave(key);
+    }
+
+    private void leave(Object key) {
+        if (key != null) {
+            occupancyByKey.computeIfPresent(key, (__, occupancy) -> occupancy == 1 ? null : occupancy - 1);
+        }
+    }
+
+    private void onExecuted() {
+        executed.increment();
+        long now = clock.nanoTime();
+        long previous = lastExecution.getAndSet(now);
+        if (previous != NO_EXECUTION) {
+            interExecution.record(now - previous);
+        }
+    }
+
+    /**
+     * @param occupancyByKey the amount of currently stored tasks per key of the keyed tasks, keys with no stored tasks are absent
+     * @param pendToRun      nanoseconds from the storing of a task to its fetching for execution, of the tasks whose storing instant is known
+     * @param interExecution nanoseconds between consecutive executions
+     */
+    public record Snapshot(long submitted,
+                           long executed,
+                           long pended,
+                           long fetched,
+                           long disposed,
+                           Map<Object, Long> occupancyByKey,
+                           LatencyHistogram.Snapshot pendToRun,
+                           LatencyHistogram.Snapshot interExecution) {
+        public long stored() {
+            return pended - fetched - disposed;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.MpscCyclicQueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * A FIFO storage of at most maxStoredTasks tasks, a task stored while it is full is handled by its {@link OverflowPolicy}.
+ * It is lock-free, the tasks are held by a preallocated {@link MpscCyclicQueue} so storing allocates nothing,
+ * and {@link #isEmpty()} and {@link #size()} only read its head and tail.
+ */
+public class BoundedQueueStorage<Task> implements Storage<Task> {
+    private final MpscCyclicQueue<Task> queue;
+    private final OverflowPolicy overflowPolicy;
+    private volatile Consumer<Task> onDispose;
+
+    public BoundedQueueStorage(int maxStoredTasks, OverflowPolicy overflowPolicy) {
+        this(maxStoredTasks, overflowPolicy, __ -> {});
+    }
+
+    public BoundedQueueStorage(int maxStoredTasks, OverflowPolicy overflowPolicy, Consumer<Task> onDispose) {
+        if (maxStoredTasks < 1) {
+            throw new IllegalArgumentException("maxStoredTasks must have a strictly positive value");
+        }
+        queue = new MpscCyclicQueue<>(maxStoredTasks);
+        this.overflowPolicy = overflowPolicy;
+        this.onDispose = onDispose;
+    }
+
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the storage is full and its policy is {@link OverflowPolicy#REJECT}
+     */
+    @Override
+    public void store(Task task) {
+        switch (overflowPolicy) {
+            case DROP_NEWEST -> {
+                if (!queue.offer(task)) {
+                    onDispose.accept(task);
+                }
+            }
+            case DROP_OLDEST -> queue.put(task, onDispose);
+            case REJECT -> {
+                if (!queue.offer(task)) {
+                    throw new RejectedExecutionException("storage is full");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the tasks in their iteration order.
+     *
+     * @throws RejectedExecutionException if the storage became full and its policy is {@link OverflowPolicy#REJECT},
+     *                                    the tasks before the rejected one remain stored
+     */
+    @Override
+    public void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            store(task);
+        }
+    }
+
+    @Override
+    public Optional<Task> fetch() {
+        return Optional.ofNullable(queue.poll());
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, queue.size()));
+        while (fetched.size() < max) {
+            Task task = queue.poll();
+            if (task == null) {
+                break;
+            }
+            fetched.add(task);
+        }
+        return fetched;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return the amount of stored tasks, it is only an estimate while tasks are concurrently stored or fetched
+     */
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,169 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.DeadlinedTask;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Tasks are fetched by their deadlines, earliest first, and tasks of the same deadline by the order they were stored in.
+ * A task whose deadline has passed is never fetched, it is disposed instead once it is reached by a store or a fetch,
+ * so a limiter spends no permits on tasks that can no longer succeed.
+ * {@link #isEmpty()} may therefore be false while all the stored tasks are expired.
+ */
+public class DeadlineStorage<Key, Task extends DeadlinedTask<Key>> implements Storage<Task> {
+    /*
+     * implementation notes:
+     * The tasks are held by a binary min-heap over (deadline, sequence) in parallel arrays, which grow by doubling.
+     * The expired tasks are the ones with the earliest deadlines, so they are always at the top and purging them costs O(log n) each.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Clock clock;
+    private Consumer<Task> onDispose;
+    private Object[] tasks;
+    private long[] deadlines;
+    private long[] sequences;
+    private int size;
+    private long nextSequence;
+
+    public DeadlineStorage(Consumer<Task> onDispose) {
+        this(Clock.system(), onDispose);
+    }
+
+    /**
+     * @param clock the source of time the deadlines of the tasks are readings of.
+     */
+    public DeadlineStorage(Clock clock, Consumer<Task> onDispose) {
+        this.clock = clock;
+        this.onDispose = onDispose;
+        tasks = new Object[INITIAL_CAPACITY];
+        deadlines = new long[INITIAL_CAPACITY];
+        sequences = new long[INITIAL_CAPACITY];
+        size = 0;
+        nextSequence = 0;
+    }
+
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
+    }
+
+    @Override
+    public synchronized void store(Task task) {
+        purgeExpiredUnsafe(clock.nanoTime());
+        storeUnsafe(task);
+    }
+
+    @Override
+    public synchronized void storeAll(Collection<? extends Task> tasks) {
+        purgeExpiredUnsafe(clock.nanoTime());
+        for (Task task : tasks) {
+            storeUnsafe(task);
+        }
+    }
+
+    private void storeUnsafe(Task task) {
+        if (size == tasks.length) {
+            tasks = Arrays.copyOf(tasks, size * 2);
+            deadlines = Arrays.copyOf(deadlines, size * 2);
+            sequences = Arrays.copyOf(sequences, size * 2);
+        }
+        siftUp(size++, task, task.deadline(), nextSequence++);
+    }
+
+    @Override
+    public synchronized Optional<Task> fetch() {
+        purgeExpiredUnsafe(clock.nanoTime());
+        return Optional.ofNullable(size == 0 ? null : removeFirstUnsafe());
+    }
+
+    @Override
+    public synchronized List<Task> fetchUpTo(int max) {
+        purgeExpiredUnsafe(clock.nanoTime());
+        List<Task> fetched = new ArrayList<>(Math.min(max, size));
+        while (fetched.size() < max && size > 0) {
+            fetched.add(removeFirstUnsafe());
+        }
+        return fetched;
+    }
+
+    /**
+     * A task expires once the clock has passed its deadline.
+     */
+    private void purgeExpiredUnsafe(long now) {
+        while (size > 0 && deadlines[0] - now < 0) {
+            onDispose.accept(removeFirstUnsafe());
+        }
+    }
+
+    private Task removeFirstUnsafe() {
+        @SuppressWarnings("unchecked")
+        Task first = (Task) tasks[0];
+        size--;
+        @SuppressWarnings("unchecked")
+        Task last = (Task) tasks[size];
+        long lastDeadline = deadlines[size];
+        long lastSequence = sequences[size];
+        tasks[size] = null;
+        if (size > 0) {
+            siftDown(0, last, lastDeadline, lastSequence);
+        }
+        return first;
+    }
+
+    private void siftUp(int position, Task task, long deadline, long sequence) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!precedes(deadline, sequence, deadlines[parent], sequences[parent])) {
+                break;
+            }
+            move(parent, position);
+            position = parent;
+        }
+        set(position, task, deadline, sequence);
+    }
+
+    private void siftDown(int position, Task task, long deadline, long sequence) {
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && precedes(deadlines[right], sequences[right], deadlines[child], sequences[child])) {
+                child = right;
+            }
+            if (!precedes(deadlines[child], sequences[child], deadline, sequence)) {
+                break;
+            }
+            move(child, position);
+            position = child;
+        }
+        set(position, task, deadline, sequence);
+    }
+
+    /**
+     * Deadlines are clock readings, so they are compared by their difference, which is correct across an overflow of the clock.
+     */
+    private static boolean precedes(long deadline, long sequence, long otherDeadline, long otherSequence) {
+        long difference = deadline - otherDeadline;
+        return difference < 0 || difference == 0 && sequence < otherSequence;
+    }
+
+    private void move(int from, int to) {
+        tasks[to] = tasks[from];
+        deadlines[to] = deadlines[from];
+        sequences[to] = sequences[from];
+    }
+
+    private void set(int position, Task task, long deadline, long sequence) {
+        tasks[position] = task;
+        deadlines[position] = deadline;
+        sequences[position] = sequence;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,290 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Tasks are fetched by deficit round robin over their keys, each key is given its weight in fetches per round,
+ * so while the keys have tasks pending, a key of weight 3 is fetched from three times as often as a key of weight 1.
+ * Within a key, tasks are fetched in the order they were stored in.
+ * At most maxStoredTasks tasks are stored, a task stored while it is full is handled by the {@link OverflowPolicy},
+ * where the oldest task is the oldest of all keys.
+ */
+public class DeficitRoundRobinStorage<Key, Task extends KeyedTask<Key>> implements Storage<Task> {
+    /*
+     * implementation notes:
+     * The keys that have tasks form a ring linked by nextActive and previousActive, and the round is at the current key.
+     * Only the current key may have fetches left of its quantum, the quantum of any other key is due once the round reaches it,
+     * so a single remainingQuantum is kept, and a new key joins the ring just before the current key, at the end of the round.
+     * Tasks occupy slots which are linked by the order they were stored in within their key, and over all keys for DROP_OLDEST.
+     * The free slots are linked by nextRecorded. The slots, and the key ids which never outnumber them, grow by doubling up to maxStoredTasks.
+     */
+    private static final int NONE = KeyIndex.NONE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ToIntFunction<? super Key> weights;
+    private final int maxStoredTasks;
+    private final OverflowPolicy overflowPolicy;
+    private Consumer<Task> onDispose;
+
+    private int capacity;
+    private Object[] tasks;
+    private int[] slotKey;
+    private int[] nextInKey;
+    private int[] previousRecorded;
+    private int[] nextRecorded;
+    private int oldestRecorded;
+    private int lastRecorded;
+    private int freeSlot;
+    private int storedCount;
+
+    private final KeyIndex<Key> keyIndex;
+    private int[] oldestOfKey;
+    private int[] newestOfKey;
+    private int[] weightOfKey;
+    private int[] nextActive;
+    private int[] previousActive;
+    private int current;
+    private int remainingQuantum;
+
+    /**
+     * @param weights gives the weight of a key, a strictly positive amount of fetches per round,
+     *                it is asked once whenever a key that has no tasks is stored a task.
+     */
+    public DeficitRoundRobinStorage(ToIntFunction<? super Key> weights, int maxStoredTasks, OverflowPolicy overflowPolicy, Consumer<Task> onDispose) {
+        if (maxStoredTasks < 1) {
+            throw new IllegalArgumentException("maxStoredTasks must have a strictly positive value");
+        }
+        this.weights = weights;
+        this.maxStoredTasks = maxStoredTasks;
+        this.overflowPolicy = overflowPolicy;
+        this.onDispose = onDispose;
+        capacity = Math.min(INITIAL_CAPACITY, maxStoredTasks);
+        tasks = new Object[capacity];
+        slotKey = new int[capacity];
+        nextInKey = new int[capacity];
+        previousRecorded = new int[capacity];
+        nextRecorded = new int[capacity];
+        linkFreeSlots(0, capacity);
+        oldestRecorded = NONE;
+        lastRecorded = NONE;
+        freeSlot = 0;
+        storedCount = 0;
+        keyIndex = new KeyIndex<>(capacity);
+        oldestOfKey = new int[capacity];
+        newestOfKey = new int[capacity];
+        weightOfKey = new int[capacity];
+        nextActive = new int[capacity];
+        previousActive = new int[capacity];
+        current = NONE;
+        remainingQuantum = 0;
+    }
+
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the storage is full and its policy is {@link OverflowPolicy#REJECT}
+     */
+    @Override
+    public synchronized void store(Task task) {
+        storeUnsafe(task);
+    }
+
+    /**
+     * Stores the tasks in their iteration order.
+     *
+     * @throws RejectedExecutionException if the storage became full and its policy is {@link OverflowPolicy#REJECT},
+     *                                    the tasks before the rejected one remain stored
+     */
+    @Override
+    public synchronized void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            storeUnsafe(task);
+        }
+    }
+
+    /**
+     * The weight of a key that joins is asked and validated before a task is dropped to make room,
+     * which includes a key whose only task is the oldest one that is dropped, so an invalid weight leaves the storage as it was.
+     */
+    private void storeUnsafe(Task task) {
+        boolean full = storedCount == maxStoredTasks;
+        if (full) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST -> {
+                    onDispose.accept(task);
+                    return;
+                }
+                case DROP_OLDEST -> {
+                }
+                case REJECT -> throw new RejectedExecutionException("storage is full");
+            }
+        }
+        int key = keyIndex.idOf(task.key());
+        boolean joining = key == NONE || (full && oldestOfKey[key] == oldestRecorded && newestOfKey[key] == oldestRecorded);
+        int weight = 0;
+        if (joining) {
+            weight = weights.applyAsInt(task.key());
+            if (weight < 1) {
+                throw new IllegalArgumentException("weights must be strictly positive");
+            }
+        }
+        if (full) {
+            onDispose.accept(removeOldestOf(slotKey[oldestRecorded]));
+        } else if (storedCount == capacity) {
+            grow();
+        }
+        if (joining) {
+            key = keyIndex.add(task.key());
+            weightOfKey[key] = weight;
+            oldestOfKey[key] = NONE;
+            newestOfKey[key] = NONE;
+            activate(key);
+        }
+        int slot = freeSlot;
+        freeSlot = nextRecorded[slot];
+        tasks[slot] = task;
+        slotKey[slot] = key;
+        nextInKey[slot] = NONE;
+        if (newestOfKey[key] == NONE) {
+            oldestOfKey[key] = slot;
+        } else {
+            nextInKey[newestOfKey[key]] = slot;
+        }
+        newestOfKey[key] = slot;
+        previousRecorded[slot] = lastRecorded;
+        nextRecorded[slot] = NONE;
+        if (lastRecorded == NONE) {
+            oldestRecorded = slot;
+        } else {
+            nextRecorded[lastRecorded] = slot;
+        }
+        lastRecorded = slot;
+        storedCount++;
+    }
+
+    private void activate(int key) {
+        if (current == NONE) {
+            nextActive[key] = key;
+            previousActive[key] = key;
+            current = key;
+            remainingQuantum = 0;
+        } else {
+            int last = previousActive[current];
+            nextActive[last] = key;
+            previousActive[key] = last;
+            nextActive[key] = current;
+            previousActive[current] = key;
+        }
+    }
+
+    private void deactivate(int key) {
+        if (nextActive[key] == key) {
+            current = NONE;
+        } else {
+            nextActive[previousActive[key]] = nextActive[key];
+            previousActive[nextActive[key]] = previousActive[key];
+            if (current == key) {
+                current = nextActive[key];
+                remainingQuantum = 0;
+            }
+        }
+        keyIndex.remove(key);
+    }
+
+    private void grow() {
+        int previousCapacity = capacity;
+        capacity = (int) Math.min(maxStoredTasks, capacity * 2L);
+        tasks = Arrays.copyOf(tasks, capacity);
+        slotKey = Arrays.copyOf(slotKey, capacity);
+        nextInKey = Arrays.copyOf(nextInKey, capacity);
+        previousRecorded = Arrays.copyOf(previousRecorded, capacity);
+        nextRecorded = Arrays.copyOf(nextRecorded, capacity);
+        linkFreeSlots(previousCapacity, capacity);
+        freeSlot = previousCapacity;
+        keyIndex.grow(capacity);
+        oldestOfKey = Arrays.copyOf(oldestOfKey, capacity);
+        newestOfKey = Arrays.copyOf(newestOfKey, capacity);
+        weightOfKey = Arrays.copyOf(weightOfKey, capacity);
+        nextActive = Arrays.copyOf(nextActive, capacity);
+        previousActive = Arrays.copyOf(previousActive, capacity);
+    }
+
+    private void linkFreeSlots(int from, int to) {
+        for (int slot = from; slot < to; slot++) {
+            nextRecorded[slot] = slot + 1 < to ? slot + 1 : NONE;
+        }
+    }
+
+    @Override
+    public synchronized Optional<Task> fetch() {
+        return Optional.ofNullable(fetchUnsafe());
+    }
+
+    @Override
+    public synchronized List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, storedCount));
+        while (fetched.size() < max) {
+            Task task = fetchUnsafe();
+            if (task == null) {
+                break;
+            }
+            fetched.add(task);
+        }
+        return fetched;
+    }
+
+    private Task fetchUnsafe() {
+        if (current == NONE) {
+            return null;
+        }
+        int key = current;
+        if (remainingQuantum == 0) {
+            remainingQuantum = weightOfKey[key];
+        }
+        Task task = removeOldestOf(key);
+        // the key may have left the ring, which already moved the round on
+        if (current == key && --remainingQuantum == 0) {
+            current = nextActive[key];
+        }
+        return task;
+    }
+
+    private Task removeOldestOf(int key) {
+        int slot = oldestOfKey[key];
+        oldestOfKey[key] = nextInKey[slot];
+        if (oldestOfKey[key] == NONE) {
+            newestOfKey[key] = NONE;
+            deactivate(key);
+        }
+        if (previousRecorded[slot] == NONE) {
+            oldestRecorded = nextRecorded[slot];
+        } else {
+            nextRecorded[previousRecorded[slot]] = nextRecorded[slot];
+        }
+        if (nextRecorded[slot] == NONE) {
+            lastRecorded = previousRecorded[slot];
+        } else {
+            previousRecorded[nextRecorded[slot]] = previousRecorded[slot];
+        }
+        @SuppressWarnings("unchecked")
+        Task task = (Task) tasks[slot];
+        tasks[slot] = null;
+        nextRecorded[slot] = freeSlot;
+        freeSlot = slot;
+        storedCount--;
+        return task;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return storedCount == 0;
+    }
+}
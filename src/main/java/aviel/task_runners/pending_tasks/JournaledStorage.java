@@ -0,0 +1,471 @@
+package aviel.task_runners.pending_tasks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Journals the tasks of a storage to an append-only file, so the tasks that were pending when the process stopped are stored again when it starts.
+ * Every store, fetch and disposal appends a record, a stored task is encoded by a {@link TaskCodec}.
+ * Records are appended to a buffer and written to the file as a group, which is forced to the disk once syncEveryRecords records were appended,
+ * and whenever {@link #sync()} is called, e.g. periodically by {@link #startSyncing(ScheduledExecutorService, Duration)}.
+ * After a crash, the records that were not yet forced may be lost: a task stored after the last sync is lost,
+ * and a task fetched after the last sync is stored again, so that tasks are recovered at least once rather than at most once.
+ * Records are matched to tasks by their encoding rather than by instance, so a storage may hand back other instances than those it was given,
+ * as a {@link SpillingStorage} does with the tasks it decoded. The codec must therefore encode a task it decoded to the same bytes,
+ * and tasks of equal encodings are interchangeable: fetching or disposing either of them ends the record that was stored first.
+ */
+public class JournaledStorage<Task> implements Storage<Task>, AutoCloseable {
+    /*
+     * implementation notes:
+     * A record is framed as [int length][int crc32c][body], its body is [byte type][long id] followed by the encoded task of a store.
+     * Replay stops at the first frame that is truncated or fails its checksum, which is where a crash tore the tail of the file.
+     * Pending tasks are kept by id together with their encoding, and the ids of each encoding are kept in the order they were stored in.
+     * The file is compacted to a store record per pending task, on startup and whenever the records in the file outnumber the pending tasks by far.
+     * Compaction writes a temporary file next to the journal and moves it over the journal atomically,
+     * then forces the directory before appending to the moved file, so a crash cannot bring back the old journal without the later records.
+     * The journal is written through a FileOutputStream and forced through its file descriptor rather than through a FileChannel,
+     * since an interrupt of a thread that writes or forces a FileChannel closes the channel, and with it the journal, for every thread.
+     */
+    private static final byte STORE = 1;
+    private static final byte FETCH = 2;
+    private static final byte DISPOSE = 3;
+    private static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int BODY_HEADER_BYTES = Byte.BYTES + Long.BYTES;
+    private static final int COMPACTION_MIN_RECORDS = 1 << 16;
+
+    private final Storage<Task> storage;
+    private final Path journal;
+    private final TaskCodec<Task> codec;
+    private final int syncEveryRecords;
+    private final SortedMap<Long, byte[]> pending;
+    private final Map<Encoding, Deque<Long>> pendingIds;
+    private final CRC32C crc;
+    private ByteBuffer buffer;
+    private FileOutputStream output;
+    private boolean closed;
+    private long nextId;
+    private long records;
+    private int unsyncedRecords;
+    private ScheduledFuture<?> scheduledSync;
+
+    /**
+     * @param syncEveryRecords the amount of records after which the journal is forced to the disk by the operation that appended the last of them,
+     *                         1 forces it by every operation, 0 leaves it to {@link #sync()}.
+     */
+    public JournaledStorage(Storage<Task> storage, Path journal, TaskCodec<Task> codec, int syncEveryRecords) throws IOException {
+        if (syncEveryRecords < 0) {
+            throw new IllegalArgumentException("syncEveryRecords must not be negative");
+        }
+        this.storage = storage;
+        this.journal = journal;
+        this.codec = codec;
+        this.syncEveryRecords = syncEveryRecords;
+        pending = new TreeMap<>();
+        pendingIds = new HashMap<>();
+        crc = new CRC32C();
+        buffer = ByteBuffer.allocate(1 << 16);
+        nextId = 0;
+        closed = false;
+        storage.addDisposalListener(this::onDisposed);
+        synchronized (this) {
+            replay();
+            compact();
+        }
+    }
+
+    @Override
+    public void addDisposalListener(Consumer<? super Task> listener) {
+        storage.addDisposalListener(listener);
+    }
+
+    /**
+     * @throws UncheckedIOException  if the journal could not be written
+     * @throws IllegalStateException if the journal is closed
+     */
+    @Override
+    public void store(Task task) {
+        FileOutputStream toSync;
+        synchronized (this) {
+            ensureOpenUnsafe();
+            storeUnsafe(task);
+            toSync = syncIfDueUnsafe();
+        }
+        force(toSync);
+    }
+
+    /**
+     * The tasks are stored one by one, so a task the storage rejects is known, and it is journaled as disposed.
+     */
+    @Override
+    public void storeAll(Collection<? extends Task> tasks) {
+        FileOutputStream toSync;
+        synchronized (this) {
+            ensureOpenUnsafe();
+            for (Task task : tasks) {
+                storeUnsafe(task);
+            }
+            toSync = syncIfDueUnsafe();
+        }
+        force(toSync);
+    }
+
+    private void storeUnsafe(Task task) {
+        appendStoreUnsafe(task);
+        try {
+            storage.store(task);
+        } catch (RuntimeException e) {
+            appendRemovalUnsafe(DISPOSE, task);
+            throw e;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the journal is closed, in which case no task is fetched
+     */
+    @Override
+    public Optional<Task> fetch() {
+        Optional<Task> task;
+        FileOutputStream toSync;
+        synchronized (this) {
+            ensureOpenUnsafe();
+            task = storage.fetch();
+            task.ifPresent(fetched -> appendRemovalUnsafe(FETCH, fetched));
+            toSync = syncIfDueUnsafe();
+        }
+        force(toSync);
+        return task;
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> tasks;
+        FileOutputStream toSync;
+        synchronized (this) {
+            ensureOpenUnsafe();
+            tasks = storage.fetchUpTo(max);
+            for (Task task : tasks) {
+                appendRemovalUnsafe(FETCH, task);
+            }
+            toSync = syncIfDueUnsafe();
+        }
+        force(toSync);
+        return tasks;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return storage.isEmpty();
+    }
+
+    /**
+     * A disposal the storage makes once the journal is closed is not journaled, so the task is recovered once more, as a fetch after the last sync would be.
+     */
+    private synchronized void onDisposed(Task task) {
+        if (!closed) {
+            appendRemovalUnsafe(DISPOSE, task);
+        }
+    }
+
+    private void ensureOpenUnsafe() {
+        if (closed) {
+            throw new IllegalStateException("journal is closed");
+        }
+    }
+
+    /**
+     * Forces all the appended records to the disk.
+     */
+    public void sync() throws IOException {
+        FileOutputStream toSync;
+        synchronized (this) {
+            ensureOpenUnsafe();
+            toSync = flushUnsafe();
+        }
+        forceChecked(toSync);
+    }
+
+    /**
+     * Syncs every period on the given scheduler until closed, a group commit for any records that syncEveryRecords did not force yet.
+     */
+    public synchronized void startSyncing(ScheduledExecutorService scheduler, Duration period) {
+        if (scheduledSync != null) {
+            throw new IllegalStateException("journal is already syncing");
+        }
+        long periodNanos = period.toNanos();
+        scheduledSync = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                sync();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Syncs and closes the journal, the storage itself keeps its tasks.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduledSync != null) {
+            scheduledSync.cancel(false);
+        }
+        if (!closed) {
+            closed = true;
+            try {
+                writeUnsafe();
+                output.getFD().sync();
+            } finally {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    private void appendStoreUnsafe(Task task) {
+        long id = nextId++;
+        byte[] encodedTask = codec.encode(task);
+        addPendingUnsafe(id, encodedTask);
+        appendUnsafe(STORE, id, encodedTask);
+    }
+
+    private void appendRemovalUnsafe(byte type, Task task) {
+        Encoding encoding = new Encoding(codec.encode(task));
+        Deque<Long> ids = pendingIds.get(encoding);
+        if (ids == null) {
+            return;
+        }
+        long id = ids.removeFirst();
+        if (ids.isEmpty()) {
+            pendingIds.remove(encoding);
+        }
+        pending.remove(id);
+        appendUnsafe(type, id, null);
+    }
+
+    private void addPendingUnsafe(long id, byte[] encodedTask) {
+        pending.put(id, encodedTask);
+        pendingIds.computeIfAbsent(new Encoding(encodedTask), __ -> new ArrayDeque<>()).addLast(id);
+    }
+
+    private void appendUnsafe(byte type, long id, byte[] encodedTask) {
+        if (output == null) {
+            // replaying, the journal is rewritten from the pending tasks once the replay is done
+            return;
+        }
+        int bodyBytes = BODY_HEADER_BYTES + (encodedTask == null ? 0 : encodedTask.length);
+        if (buffer.remaining() < FRAME_HEADER_BYTES + bodyBytes) {
+            try {
+                writeUnsafe();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (buffer.capacity() < FRAME_HEADER_BYTES + bodyBytes) {
+                buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + bodyBytes);
+            }
+        }
+        putRecord(buffer, type, id, encodedTask);
+        records++;
+        unsyncedRecords++;
+    }
+
+    private void putRecord(ByteBuffer target, byte type, long id, byte[] encodedTask) {
+        int bodyBytes = BODY_HEADER_BYTES + (encodedTask == null ? 0 : encodedTask.length);
+        int frame = target.position();
+        target.putInt(bodyBytes);
+        target.putInt(0);
+        int body = target.position();
+        target.put(type);
+        target.putLong(id);
+        if (encodedTask != null) {
+            target.put(encodedTask);
+        }
+        crc.reset();
+        crc.update(target.array(), target.arrayOffset() + body, bodyBytes);
+        target.putInt(frame + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * @return the file to force outside the lock, or null if the journal is not due to be synced
+     */
+    private FileOutputStream syncIfDueUnsafe() {
+        if (syncEveryRecords == 0 || unsyncedRecords < syncEveryRecords) {
+            return null;
+        }
+        try {
+            return flushUnsafe();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the file to force outside the lock, or null if the journal was compacted instead, which forced it already
+     */
+    private FileOutputStream flushUnsafe() throws IOException {
+        if (records > COMPACTION_MIN_RECORDS && records > 4L * pending.size()) {
+            compact();
+            return null;
+        }
+        writeUnsafe();
+        unsyncedRecords = 0;
+        return output;
+    }
+
+    private void writeUnsafe() throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    private void force(FileOutputStream toSync) {
+        try {
+            forceChecked(toSync);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forcing is done outside the lock so the operations of other threads are appended meanwhile and forced by the next sync.
+     * Forcing a file that was closed meanwhile fails, which is ignored only if the file is no longer the journal's,
+     * as it was then closed by a compaction or by {@link #close()}, both of which forced the journal themselves.
+     */
+    private void forceChecked(FileOutputStream toSync) throws IOException {
+        if (toSync == null) {
+            return;
+        }
+        try {
+            toSync.getFD().sync();
+        } catch (IOException e) {
+            synchronized (this) {
+                if (toSync == output) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the tasks that were pending in the journal into the storage, in the order they were first stored in.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        SortedMap<Long, byte[]> stored = new TreeMap<>();
+        try (InputStream file = Files.newInputStream(journal);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(file))) {
+            while (true) {
+                int bodyBytes;
+                int checksum;
+                byte[] body;
+                try {
+                    bodyBytes = input.readInt();
+                    checksum = input.readInt();
+                    if (bodyBytes < BODY_HEADER_BYTES) {
+                        break;
+                    }
+                    body = input.readNBytes(bodyBytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if (body.length < bodyBytes || (int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte type = record.get();
+                long id = record.getLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == STORE) {
+                    stored.put(id, Arrays.copyOfRange(body, BODY_HEADER_BYTES, body.length));
+                } else {
+                    stored.remove(id);
+                }
+            }
+        }
+        for (Map.Entry<Long, byte[]> entry : stored.entrySet()) {
+            Task task = codec.decode(entry.getValue());
+            addPendingUnsafe(entry.getKey(), entry.getValue());
+            storage.store(task);
+        }
+    }
+
+    /**
+     * Rewrites the journal as a store record per pending task, which subsumes any record that was not written yet.
+     */
+    private void compact() throws IOException {
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".compacting");
+        try (FileOutputStream compactOutput = new FileOutputStream(compacted.toFile())) {
+            ByteBuffer compactBuffer = ByteBuffer.allocate(buffer.capacity());
+            for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+                byte[] encodedTask = entry.getValue();
+                int recordBytes = FRAME_HEADER_BYTES + BODY_HEADER_BYTES + encodedTask.length;
+                if (compactBuffer.remaining() < recordBytes) {
+                    compactOutput.write(compactBuffer.array(), 0, compactBuffer.position());
+                    compactBuffer.clear();
+                    if (compactBuffer.capacity() < recordBytes) {
+                        compactBuffer = ByteBuffer.allocate(recordBytes);
+                    }
+                }
+                putRecord(compactBuffer, STORE, entry.getKey(), encodedTask);
+            }
+            compactOutput.write(compactBuffer.array(), 0, compactBuffer.position());
+            compactOutput.getFD().sync();
+        }
+        if (output != null) {
+            output.close();
+        }
+        Files.move(compacted, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+        output = new FileOutputStream(journal.toFile(), true);
+        buffer.clear();
+        records = pending.size();
+        unsyncedRecords = 0;
+    }
+
+    /**
+     * Forces the move of the compacted file, the directory can only be forced through a FileChannel,
+     * so the interrupt status is cleared meanwhile rather than let it close the channel before forcing it.
+     */
+    private void forceDirectory() throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try (FileChannel directory = FileChannel.open(journal.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private record Encoding(byte[] bytes) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Encoding encoding && Arrays.equals(encoding.bytes, bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+}
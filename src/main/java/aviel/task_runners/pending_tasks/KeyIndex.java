@@ -0,0 +1,140 @@
+package aviel.task_runners.pending_tasks;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Maps up to maxKeys keys to dense ids in [0, maxKeys), ids of removed keys are reused.
+ * It is an open addressing hash table with linear probing, removal shifts the following entries back rather than leaving tombstones,
+ * so nothing is allocated once it is constructed, unless it is grown.
+ * It is not thread safe, its owner is expected to guard it.
+ */
+class KeyIndex<Key> {
+    static final int NONE = -1;
+
+    private Object[] keys;
+    private int[] hashes;
+    private int[] table;
+    private int mask;
+    private int[] freeIds;
+    private int freeCount;
+
+    KeyIndex(int maxKeys) {
+        keys = new Object[maxKeys];
+        hashes = new int[maxKeys];
+        table = emptyTable(maxKeys);
+        mask = table.length - 1;
+        freeIds = new int[maxKeys];
+        for (int i = 0; i < maxKeys; i++) {
+            freeIds[i] = maxKeys - 1 - i;
+        }
+        freeCount = maxKeys;
+    }
+
+    /**
+     * @return the id of the key, or {@link #NONE} if it is absent
+     */
+    int idOf(Key key) {
+        int hash = hash(key);
+        for (int bucket = hash & mask; table[bucket] != NONE; bucket = (bucket + 1) & mask) {
+            int id = table[bucket];
+            if (hashes[id] == hash && Objects.equals(keys[id], key)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param key a key that is absent
+     * @return the new id of the key
+     */
+    int add(Key key) {
+        if (freeCount == 0) {
+            throw new IllegalStateException("index is full");
+        }
+        int id = freeIds[--freeCount];
+        int hash = hash(key);
+        keys[id] = key;
+        hashes[id] = hash;
+        int bucket = hash & mask;
+        while (table[bucket] != NONE) {
+            bucket = (bucket + 1) & mask;
+        }
+        table[bucket] = id;
+        return id;
+    }
+
+    @SuppressWarnings("unchecked")
+    Key keyOf(int id) {
+        return (Key) keys[id];
+    }
+
+    void remove(int id) {
+        int bucket = hashes[id] & mask;
+        while (table[bucket] != id) {
+            bucket = (bucket + 1) & mask;
+        }
+        int hole = bucket;
+        for (bucket = (hole + 1) & mask; table[bucket] != NONE; bucket = (bucket + 1) & mask) {
+            int home = hashes[table[bucket]] & mask;
+            // an entry moves back into the hole unless its home lies cyclically after the hole, up to the entry itself
+            boolean homeAfterHole = hole <= bucket ? hole < home && home <= bucket : hole < home || home <= bucket;
+            if (!homeAfterHole) {
+                table[hole] = table[bucket];
+                hole = bucket;
+            }
+        }
+        table[hole] = NONE;
+        keys[id] = null;
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Makes room for up to maxKeys keys, the ids of the present keys are kept.
+     */
+    void grow(int maxKeys) {
+        int previousMaxKeys = keys.length;
+        keys = Arrays.copyOf(keys, maxKeys);
+        hashes = Arrays.copyOf(hashes, maxKeys);
+        freeIds = Arrays.copyOf(freeIds, maxKeys);
+        for (int id = maxKeys - 1; id >= previousMaxKeys; id--) {
+            freeIds[freeCount++] = id;
+        }
+        int[] previousTable = table;
+        table = emptyTable(maxKeys);
+        mask = table.length - 1;
+        for (int id : previousTable) {
+            if (id != NONE) {
+                int bucket = hashes[id] & mask;
+                while (table[bucket] != NONE) {
+                    bucket = (bucket + 1) & mask;
+                }
+                table[bucket] = id;
+            }
+        }
+    }
+
+    private static int[] emptyTable(int maxKeys) {
+        int length = 2;
+        while (length < maxKeys * 2L) {
+            length <<= 1;
+        }
+        int[] table = new int[length];
+        Arrays.fill(table, NONE);
+        return table;
+    }
+
+    /**
+     * Keys such as consecutive integers have consecutive hash codes, which would occupy a single run of buckets
+     * that every removal has to shift through, so the hash codes are mixed by the finalizer of MurmurHash3.
+     */
+    private static int hash(Object key) {
+        int hash = Objects.hashCode(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,72 +1,284 @@
 package aviel.task_runners.pending_tasks;
 
-import aviel.task_runners.CyclicQueue;
 import aviel.task_runners.KeyedTask;
-import aviel.task_runners.Timestamped;
+import aviel.task_runners.events.TaskDisposedEvent;
+import aviel.task_runners.events.TaskFetchedEvent;
+import aviel.task_runners.events.TaskStoredEvent;
 
 import java.util.*;
-import java.util.function.Function;
-
-import static java.util.Comparator.comparing;
+import java.util.function.Consumer;
 
 /**
+ * Each key has a queue of its entries, and the keys are ordered by the oldest entries of their queues.
  * When the amount of queues has reached queuesCountMax, upon receiving a task of a new key,
- * all entries of a key which hold the oldest entry are disposed.
- * When fetching an element, the last element to be recorded is fetched.
+ * all entries of the key whose oldest entry was recorded last are disposed.
+ * When a queue of a key has reached queueSizeMax, upon receiving a task of that key, its oldest entry is disposed.
+ * When fetching an element, the oldest entry of the key whose oldest entry was recorded last is fetched.
  */
 public class KeyedSwapperByOldestStorage<Key, Task extends KeyedTask<Key>> implements Storage<Task> {
-    private final SortedSet<Key> sortedKeys;
-    private final Map<Key, CyclicQueue<Timestamped<Task>>> queuesMap;
+    /*
+     * implementation notes:
+     * Tasks occupy slots which are linked by the order they were recorded in within their key, each slot holding its recording sequence.
+     * The keys are held by a binary max-heap over the sequences of their oldest entries, and each key knows its position in it.
+     * A fetch from the top key only makes its oldest entry newer, so the key stays on top and the fetch is O(1) until it drains the key.
+     * A store to a key that is not full is O(1), and a new key or a full key, whose oldest entry becomes newer, is sifted up in O(log queuesCountMax).
+     * The free slots are linked by nextInKey. The slots grow by doubling up to queuesCountMax * queueSizeMax,
+     * and keys are given ids by a KeyIndex, so a key whose queue is drained or swapped leaves nothing behind.
+     */
+    private static final int NONE = KeyIndex.NONE;
+    private static final int INITIAL_CAPACITY = 64;
 
     private final int queuesCountMax;
     private final int queueSizeMax;
+    private final int maxCapacity;
+    private Consumer<Task> onDispose;
+
+    private int capacity;
+    private Object[] tasks;
+    private long[] sequences;
+    private int[] nextInKey;
+    private int freeSlot;
+    private long nextSequence;
+
+    private final KeyIndex<Key> keyIndex;
+    private final int[] oldestOfKey;
+    private final int[] newestOfKey;
+    private final int[] sizeOfKey;
+    private final int[] positionOfKey;
+    private final int[] heap;
+    private int keysCount;
 
     public KeyedSwapperByOldestStorage(int queuesCountMax, int queueSizeMax) {
-        queuesMap = new HashMap<>();
-        Function<Optional<Timestamped<Task>>, Timestamped<Task>> optionalGet = runnableTimestamped ->
-                runnableTimestamped.orElseThrow(() -> new RuntimeException("should not have empty queues"));
-        Comparator<Key> byLatestTimestamp =
-                comparing(queuesMap::get, comparing(CyclicQueue::peak, comparing(optionalGet, comparing(Timestamped::timestamp))));
-        sortedKeys = new TreeSet<>(byLatestTimestamp);
+        if (queuesCountMax < 1) {
+            throw new IllegalArgumentException("queuesCountMax must be strictly positive");
+        }
+        if (queueSizeMax < 1) {
+            throw new IllegalArgumentException("queueSizeMax must be strictly positive");
+        }
         this.queuesCountMax = queuesCountMax;
         this.queueSizeMax = queueSizeMax;
+        maxCapacity = (int) Math.min((long) queuesCountMax * queueSizeMax, Integer.MAX_VALUE - 8);
+        onDispose = __ -> {};
+        capacity = Math.min(INITIAL_CAPACITY, maxCapacity);
+        tasks = new Object[capacity];
+        sequences = new long[capacity];
+        nextInKey = new int[capacity];
+        linkFreeSlots(0, capacity);
+        freeSlot = 0;
+        nextSequence = 0;
+        keyIndex = new KeyIndex<>(queuesCountMax);
+        oldestOfKey = new int[queuesCountMax];
+        newestOfKey = new int[queuesCountMax];
+        sizeOfKey = new int[queuesCountMax];
+        positionOfKey = new int[queuesCountMax];
+        heap = new int[queuesCountMax];
+        keysCount = 0;
+    }
+
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
     }
 
     @Override
     public synchronized void store(Task task) {
-        if (queuesMap.containsKey(task.key())) {
-            CyclicQueue<Timestamped<Task>> queue = queuesMap.get(task.key());
-            sortedKeys.remove(task.key());
-            queue.put(Timestamped.create(task));
-            sortedKeys.add(task.key());
+        storeUnsafe(task);
+    }
+
+    @Override
+    public synchronized void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            storeUnsafe(task);
+        }
+    }
+
+    /**
+     * Emits a {@link TaskStoredEvent} whose duration is that of the storing alone, including the reordering of the keys and any disposal it causes.
+     */
+    private void storeUnsafe(Task task) {
+        TaskStoredEvent event = new TaskStoredEvent();
+        event.begin();
+        storeOrderedUnsafe(task);
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit(this, task.key());
+        }
+    }
+
+    private void storeOrderedUnsafe(Task task) {
+        int key = keyIndex.idOf(task.key());
+        if (key == NONE) {
+            if (keysCount == queuesCountMax) {
+                swapOut(heap[0]);
+            }
+            key = keyIndex.add(task.key());
+            oldestOfKey[key] = NONE;
+            newestOfKey[key] = NONE;
+            sizeOfKey[key] = 0;
+            link(key, task);
+            siftUp(keysCount++, key);
+        } else if (sizeOfKey[key] == queueSizeMax) {
+            // the key keeps its id and its place in the heap while it has no entries, as when queueSizeMax is 1
+            Task overwritten = unlinkOldest(key);
+            link(key, task);
+            siftUp(positionOfKey[key], key);
+            dispose(overwritten);
+        } else {
+            link(key, task);
+        }
+    }
+
+    private void link(int key, Task task) {
+        if (freeSlot == NONE) {
+            grow();
+        }
+        int slot = freeSlot;
+        freeSlot = nextInKey[slot];
+        tasks[slot] = task;
+        sequences[slot] = nextSequence++;
+        nextInKey[slot] = NONE;
+        if (newestOfKey[key] == NONE) {
+            oldestOfKey[key] = slot;
         } else {
-            if (sortedKeys.size() == queuesCountMax) {
-                sortedKeys.remove(sortedKeys.last());
+            nextInKey[newestOfKey[key]] = slot;
+        }
+        newestOfKey[key] = slot;
+        sizeOfKey[key]++;
+    }
+
+    private Task unlinkOldest(int key) {
+        int slot = oldestOfKey[key];
+        oldestOfKey[key] = nextInKey[slot];
+        if (oldestOfKey[key] == NONE) {
+            newestOfKey[key] = NONE;
+        }
+        sizeOfKey[key]--;
+        @SuppressWarnings("unchecked")
+        Task task = (Task) tasks[slot];
+        tasks[slot] = null;
+        nextInKey[slot] = freeSlot;
+        freeSlot = slot;
+        return task;
+    }
+
+    private void swapOut(int key) {
+        removeTop();
+        keyIndex.remove(key);
+        while (sizeOfKey[key] > 0) {
+            dispose(unlinkOldest(key));
+        }
+    }
+
+    private void removeTop() {
+        keysCount--;
+        if (keysCount > 0) {
+            siftDown(0, heap[keysCount]);
+        }
+    }
+
+    private void siftUp(int position, int key) {
+        long sequence = oldestSequenceOf(key);
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (oldestSequenceOf(heap[parent]) > sequence) {
+                break;
             }
-            CyclicQueue<Timestamped<Task>> newQueue = new CyclicQueue<>(queueSizeMax);
-            newQueue.put(Timestamped.create(task));
-            queuesMap.put(task.key(), newQueue);
-            sortedKeys.add(task.key());
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(key, position);
+    }
+
+    private void siftDown(int position, int key) {
+        long sequence = oldestSequenceOf(key);
+        int half = keysCount >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < keysCount && oldestSequenceOf(heap[right]) > oldestSequenceOf(heap[child])) {
+                child = right;
+            }
+            if (oldestSequenceOf(heap[child]) < sequence) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(key, position);
+    }
+
+    private long oldestSequenceOf(int key) {
+        return sequences[oldestOfKey[key]];
+    }
+
+    private void place(int key, int position) {
+        heap[position] = key;
+        positionOfKey[key] = position;
+    }
+
+    private void grow() {
+        int previousCapacity = capacity;
+        capacity = (int) Math.min(maxCapacity, capacity * 2L);
+        tasks = Arrays.copyOf(tasks, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        nextInKey = Arrays.copyOf(nextInKey, capacity);
+        linkFreeSlots(previousCapacity, capacity);
+        freeSlot = previousCapacity;
+    }
+
+    private void linkFreeSlots(int from, int to) {
+        for (int slot = from; slot < to; slot++) {
+            nextInKey[slot] = slot + 1 < to ? slot + 1 : NONE;
+        }
+    }
+
+    private void dispose(Task task) {
+        onDispose.accept(task);
+        TaskDisposedEvent event = new TaskDisposedEvent();
+        if (event.shouldCommit()) {
+            event.commit(this, task.key());
         }
     }
 
     @Override
     public synchronized Optional<Task> fetch() {
-        if (sortedKeys.isEmpty()) {
-            return Optional.empty();
+        return Optional.ofNullable(fetchUnsafe());
+    }
+
+    @Override
+    public synchronized List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, 16));
+        while (fetched.size() < max) {
+            Task task = fetchUnsafe();
+            if (task == null) {
+                break;
+            }
+            fetched.add(task);
+        }
+        return fetched;
+    }
+
+    private Task fetchUnsafe() {
+        if (keysCount == 0) {
+            return null;
+        }
+        TaskFetchedEvent event = new TaskFetchedEvent();
+        event.begin();
+        int key = heap[0];
+        Task task = unlinkOldest(key);
+        if (sizeOfKey[key] == 0) {
+            removeTop();
+            keyIndex.remove(key);
         }
-        Key last = sortedKeys.last();
-        sortedKeys.remove(last);
-        CyclicQueue<Timestamped<Task>> queue = queuesMap.get(last);
-        Timestamped<Task> task = queue.pop().orElseThrow(() -> new RuntimeException("recorded queue should not be empty"));
-        if (queue.size() > 0) {
-            sortedKeys.add(last);
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit(this, task.key());
         }
-        return Optional.of(task.get());
+        return task;
     }
 
     @Override
     public boolean isEmpty() {
-        return sortedKeys.isEmpty();
+        return keysCount == 0;
     }
 }
@@ -0,0 +1,21 @@
+package aviel.task_runners.pending_tasks;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What a bounded storage does with a task that is stored while it is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * The stored task is disposed, the storage is left as it is.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest task of the storage is disposed to make room for the stored task.
+     */
+    DROP_OLDEST,
+    /**
+     * The store throws a {@link RejectedExecutionException}, the storage is left as it is.
+     */
+    REJECT,
+}
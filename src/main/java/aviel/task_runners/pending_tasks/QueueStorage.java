@@ -1,9 +1,15 @@
 package aviel.task_runners.pending_tasks;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * An unbounded FIFO storage, see {@link BoundedQueueStorage} for a bounded one.
+ */
 public class QueueStorage<Task> implements Storage<Task> {
     private final BlockingQueue<Task> queue;
 
@@ -16,9 +22,21 @@ public class QueueStorage<Task> implements Storage<Task> {
         queue.add(task);
     }
 
+    @Override
+    public void storeAll(Collection<? extends Task> tasks) {
+        queue.addAll(tasks);
+    }
+
     @Override
     public Optional<Task> fetch() {
-        return Optional.ofNullable(this.queue.remove());
+        return Optional.ofNullable(queue.poll());
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, 16));
+        queue.drainTo(fetched, max);
+        return fetched;
     }
 
     @Override
@@ -1,226 +1,241 @@
 package aviel.task_runners.pending_tasks;
 
-import aviel.task_runners.DLNode;
-import aviel.task_runners.ExposedDLList;
 import aviel.task_runners.KeyedTask;
-import aviel.task_runners.ThisShouldNotHappen;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.random.RandomGenerator;
 
 /**
  * Tasks are disposed weightedly, that is, to dispose a task a key is chosen by a chance proportional to the amount of tasks on that key.
  * Tasks are fetched indiscriminately, that is, a key for whom its task will be fetched is chosen with uniform distribution.
+ * Either way, the task that is removed from the chosen key is its oldest one.
  */
 public class RandomStorage<Key, Task extends KeyedTask<Key>> implements Storage<Task> {
-    private final Consumer<Task> onDispose;
-    private final Undiscriminating<Key> undiscriminating;
-    private final Weighted<Key> weighted;
-    private final Queues<Key, Task> queues;
+    /*
+     * implementation notes:
+     * All the state is in arrays that are allocated at construction, so storing and fetching allocate nothing.
+     * Only the stripes of StripedRandomStorage start smaller and grow their arrays, doubling them up to maxStoredTasks.
+     * Tasks occupy slots, the slots of a key are linked from its oldest to its newest task by nextInKey,
+     * and the free slots are linked by nextInKey as well.
+     * 1) stored[0, storedCount) are the occupied slots, and storedPosition[stored[i]] = i.
+     *    A uniformly chosen slot of stored is a key chosen by a chance proportional to its amount of tasks.
+     * 2) active[0, activeCount) are the ids of the keys that have tasks, and activePosition[active[i]] = i.
+     *    A uniformly chosen id of active is a key chosen with uniform distribution.
+     */
+    private static final int NONE = KeyIndex.NONE;
+
+    private Consumer<Task> onDispose;
+    private final RandomGenerator random;
     private final int maxStoredTasks;
-    private final Random random;
+    private int capacity;
+    private Object[] tasks;
+    private int[] slotKey;
+    private int[] nextInKey;
+    private int[] stored;
+    private int[] storedPosition;
+    private int storedCount;
+    private int freeSlot;
+    private final KeyIndex<Key> keyIndex;
+    private int[] oldest;
+    private int[] newest;
+    private int[] active;
+    private int[] activePosition;
+    private int activeCount;
+
+    public RandomStorage(RandomGenerator random, int maxStoredTasks, Consumer<Task> onDispose) {
+        this(random, maxStoredTasks, maxStoredTasks, onDispose);
+    }
 
-    public RandomStorage(Random random, int maxStoredTasks, Consumer<Task> onDispose) {
+    /**
+     * @param capacity the amount of tasks the arrays are allocated for at first, they grow once it is exceeded.
+     */
+    RandomStorage(RandomGenerator random, int maxStoredTasks, int capacity, Consumer<Task> onDispose) {
         if (maxStoredTasks < 1) {
             throw new IllegalArgumentException("maxStoredTasks must have a strictly positive value");
         }
+        if (capacity < 1 || capacity > maxStoredTasks) {
+            throw new IllegalArgumentException("capacity must be strictly positive and must not exceed maxStoredTasks");
+        }
         this.onDispose = onDispose;
-        undiscriminating = new Undiscriminating<>(maxStoredTasks);
-        weighted = new Weighted<>(maxStoredTasks);
-        queues = new Queues<>(maxStoredTasks);
-        this.maxStoredTasks = maxStoredTasks;
         this.random = random;
+        this.maxStoredTasks = maxStoredTasks;
+        this.capacity = capacity;
+        tasks = new Object[capacity];
+        slotKey = new int[capacity];
+        nextInKey = new int[capacity];
+        linkFreeSlots(0, capacity);
+        stored = new int[capacity];
+        storedPosition = new int[capacity];
+        storedCount = 0;
+        freeSlot = 0;
+        keyIndex = new KeyIndex<>(capacity);
+        oldest = new int[capacity];
+        newest = new int[capacity];
+        active = new int[capacity];
+        activePosition = new int[capacity];
+        activeCount = 0;
     }
 
     @Override
-    public synchronized void store(Task task) {
-        if (weighted.size() == maxStoredTasks) {
-            disposeEntryWeightedly();
-        }
-        weighted.insert(task.key());
-        undiscriminating.insert(task.key());
-        queues.insert(task);
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
     }
 
-    private void disposeEntryWeightedly() {
-        Optional<Key> removedOpt = weighted.remove(random);
-        if (removedOpt.isEmpty()) {
-            return;
-        }
-        Key removed = removedOpt.get();
-        Task task = queues.removeOneOn(removed)
-                          .orElseThrow(() -> new ThisShouldNotHappen("For every entry on weighted" +
-                                                                     " there must be a corresponding entry on queues"));
-        onDispose.accept(task);
-        if (queues.isEmpty(removed)) {
-            undiscriminating.remove(removed);
-        }
+    @Override
+    public synchronized void store(Task task) {
+        storeUnsafe(task);
     }
 
     @Override
-    public synchronized Optional<Task> fetch() {
-        Optional<Key> chosenOpt = undiscriminating.get(random);
-        if (chosenOpt.isEmpty()) {
-            return Optional.empty();
-        }
-        Key chosen = chosenOpt.get();
-        weighted.removeOneOn(chosen);
-        if (weighted.isEmpty(chosen)) {
-            undiscriminating.remove(chosen);
+    public synchronized void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            storeUnsafe(task);
         }
-        Task task = queues.removeOneOn(chosen)
-                          .orElseThrow(() -> new ThisShouldNotHappen("For every entry on undiscriminating" +
-                                                                     " there must be a corresponding entry on queues"));
-        return Optional.of(task);
     }
 
-    @Override
-    public boolean isEmpty() {
-        return queues.isEmpty();
+    private void storeUnsafe(Task task) {
+        if (storedCount == maxStoredTasks) {
+            disposeEntryWeightedly();
+        } else if (storedCount == capacity) {
+            grow();
+        }
+        int key = keyIndex.idOf(task.key());
+        if (key == NONE) {
+            key = keyIndex.add(task.key());
+            oldest[key] = NONE;
+            newest[key] = NONE;
+            activePosition[key] = activeCount;
+            active[activeCount++] = key;
+        }
+        int slot = freeSlot;
+        freeSlot = nextInKey[slot];
+        tasks[slot] = task;
+        slotKey[slot] = key;
+        nextInKey[slot] = NONE;
+        if (newest[key] == NONE) {
+            oldest[key] = slot;
+        } else {
+            nextInKey[newest[key]] = slot;
+        }
+        newest[key] = slot;
+        storedPosition[slot] = storedCount;
+        stored[storedCount++] = slot;
     }
 
-    private static class Queues<Key, Task extends KeyedTask<Key>> {
-        private final Map<Key, Queue<Task>> queues;
-
-        public Queues(int maxStoredTasks) {
-            this.queues = new HashMap<>(maxStoredTasks);
-        }
-
-        public Optional<Task> removeOneOn(Key key) {
-            Queue<Task> queue = queues.get(key);
-            if (queue == null) {
-                return Optional.empty();
-            }
-            Task removed = queue.remove();
-            if (queue.isEmpty()) {
-                queues.remove(key);
-            }
-            return Optional.of(removed);
-        }
-
-        public void insert(Task task) {
-            queues.computeIfAbsent(task.key(), __ -> new LinkedList<>())
-                  .add(task);
-        }
+    /**
+     * There are as many key ids as there are slots, since every key in the index has at least one task.
+     */
+    private void grow() {
+        int previousCapacity = capacity;
+        capacity = (int) Math.min(maxStoredTasks, capacity * 2L);
+        tasks = Arrays.copyOf(tasks, capacity);
+        slotKey = Arrays.copyOf(slotKey, capacity);
+        nextInKey = Arrays.copyOf(nextInKey, capacity);
+        stored = Arrays.copyOf(stored, capacity);
+        storedPosition = Arrays.copyOf(storedPosition, capacity);
+        oldest = Arrays.copyOf(oldest, capacity);
+        newest = Arrays.copyOf(newest, capacity);
+        active = Arrays.copyOf(active, capacity);
+        activePosition = Arrays.copyOf(activePosition, capacity);
+        keyIndex.grow(capacity);
+        linkFreeSlots(previousCapacity, capacity);
+        freeSlot = previousCapacity;
+    }
 
-        public boolean isEmpty(Key key) {
-            return !queues.containsKey(key);
+    private void linkFreeSlots(int from, int to) {
+        for (int slot = from; slot < to; slot++) {
+            nextInKey[slot] = slot + 1 < to ? slot + 1 : NONE;
         }
+    }
 
-        public boolean isEmpty() {
-            return queues.isEmpty();
-        }
+    private void disposeEntryWeightedly() {
+        onDispose.accept(removeWeightedlyUnsafe());
     }
 
-    private static class Weighted<Key> {
-        /*
-         * implementation notes:
-         * 1) Foreach index in data:
-         *    locator[data[index].key] contains node data[index].locatorNode
-         * 2) Foreach key, list in locator:
-         *    Foreach value index in list:
-         *    data[index].key = key
-         */
-        private final ArrayList<Entry<Key>> data;
-        private final Map<Key, ExposedDLList<Integer>> locator;
-
-        public Weighted(int maxStoredTasks) {
-            data = new ArrayList<>(maxStoredTasks);
-            locator = new HashMap<>(maxStoredTasks);
-        }
+    /**
+     * Removes a task as a disposal would, without reporting it to the disposal listeners.
+     *
+     * @return the removed task, or null if the storage is empty
+     */
+    synchronized Task removeWeightedly() {
+        return storedCount == 0 ? null : removeWeightedlyUnsafe();
+    }
 
-        public Optional<Key> remove(Random random) {
-            if (data.isEmpty()) {
-                return Optional.empty();
-            }
-            int index = random.nextInt(data.size());
-            Entry<Key> chosen = data.get(index);
-            Collections.swap(data, index, data.size() - 1);
-            data.remove(data.size() - 1);
-            chosen.locatorNode.unlink();
-            if (index < data.size()) {
-                relocate(index);
-            }
-            if (locator.get(chosen.key).size() == 0) {
-                locator.remove(chosen.key);
-            }
-            return Optional.of(chosen.key);
-        }
+    private Task removeWeightedlyUnsafe() {
+        int slot = stored[random.nextInt(storedCount)];
+        return removeOldestOf(slotKey[slot]);
+    }
 
-        private void relocate(int index) {
-            Entry<Key> oldEntry = data.get(index);
-            oldEntry.locatorNode.unlink();
-            data.set(index,
-                     new Entry<>(oldEntry.key,
-                                 locator.get(oldEntry.key).addLast(index)));
-        }
+    @Override
+    public synchronized Optional<Task> fetch() {
+        return Optional.ofNullable(fetchUnsafe());
+    }
 
-        public void removeOneOn(Key key) {
-            if (!locator.containsKey(key)) {
-                return;
-            }
-            ExposedDLList<Integer> locatorEntry = locator.get(key);
-            int index = locatorEntry.removeLast()
-                                    .orElseThrow(() -> new ThisShouldNotHappen("Data map should not contain empty entries" +
-                                                                               " at Weighted"));
-            Collections.swap(data, index, data.size() - 1);
-            data.remove(data.size() - 1);
-            if (index < data.size()) {
-                relocate(index);
-            }
-            if (locatorEntry.size() == 0) {
-                locator.remove(key);
+    @Override
+    public synchronized List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, storedCount));
+        while (fetched.size() < max) {
+            Task task = fetchUnsafe();
+            if (task == null) {
+                break;
             }
+            fetched.add(task);
         }
+        return fetched;
+    }
 
-        public boolean isEmpty(Key key) {
-            return !locator.containsKey(key);
-        }
-
-        public void insert(Key key) {
-            data.add(new Entry<>(key,
-                                 locator.computeIfAbsent(key, __ -> new ExposedDLList<>())
-                                        .addLast(data.size())));
-        }
+    /**
+     * @return the fetched task, or null if the storage is empty
+     */
+    synchronized Task poll() {
+        return fetchUnsafe();
+    }
 
-        public int size() {
-            return data.size();
+    private Task fetchUnsafe() {
+        if (activeCount == 0) {
+            return null;
         }
-
-        private record Entry<Key>(Key key, DLNode<Integer> locatorNode) {}
+        return removeOldestOf(active[random.nextInt(activeCount)]);
     }
 
-    private static class Undiscriminating<Key> {
-        private final ArrayList<Key> data;
-        private final Map<Key, Integer> locator;
-
-        public Undiscriminating(int maxStoredTasks) {
-            data = new ArrayList<>(maxStoredTasks);
-            locator = new HashMap<>(maxStoredTasks);
-        }
+    private Task removeOldestOf(int key) {
+        int slot = oldest[key];
+        oldest[key] = nextInKey[slot];
+        if (oldest[key] == NONE) {
+            newest[key] = NONE;
+            int lastActive = active[--activeCount];
+            active[activePosition[key]] = lastActive;
+            activePosition[lastActive] = activePosition[key];
+            keyIndex.remove(key);
+        }
+        int lastStored = stored[--storedCount];
+        stored[storedPosition[slot]] = lastStored;
+        storedPosition[lastStored] = storedPosition[slot];
+        @SuppressWarnings("unchecked")
+        Task task = (Task) tasks[slot];
+        tasks[slot] = null;
+        nextInKey[slot] = freeSlot;
+        freeSlot = slot;
+        return task;
+    }
 
-        public Optional<Key> get(Random random) {
-            if (data.isEmpty()) {
-                return Optional.empty();
-            }
-            return Optional.of(data.get(random.nextInt(data.size())));
-        }
+    @Override
+    public boolean isEmpty() {
+        return storedCount == 0;
+    }
 
-        public void remove(Key key) {
-            Integer index = locator.get(key);
-            Collections.swap(data, index, data.size() - 1);
-            data.remove(data.size() - 1);
-            if (index < data.size()) {
-                locator.put(data.get(index), index);
-            }
-            locator.remove(key);
-        }
+    /**
+     * Read under the lock, so it is current as of the call, though it may be stale by the time it is used.
+     */
+    synchronized int size() {
+        return storedCount;
+    }
 
-        public void insert(Key key) {
-            if (!locator.containsKey(key)) {
-                locator.put(key, data.size());
-                data.add(key);
-            }
-        }
+    /**
+     * The amount of keys that have tasks, read under the lock, so it is current as of the call, though it may be stale by the time it is used.
+     */
+    synchronized int keyCount() {
+        return activeCount;
     }
 }
@@ -0,0 +1,317 @@
+package aviel.task_runners.pending_tasks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A FIFO storage that holds up to hotCapacity tasks on the heap and spills the rest, encoded by a {@link TaskCodec},
+ * to memory-mapped segment files, so the amount of pending tasks is bounded by the disk rather than by the heap.
+ * Once tasks are spilled, further tasks are spilled behind them until the disk is drained, which keeps the order.
+ * The heap is refilled from the disk a whole hotCapacity of tasks at a time, reading the segments sequentially,
+ * and whenever the reading moves on to a segment, the segment after it is prefetched into memory.
+ * Segments are deleted once they are read. The storage is not durable, its tasks are disposed and its segments are deleted when it is closed.
+ */
+public class SpillingStorage<Task> implements Storage<Task>, AutoCloseable {
+    private final Path directory;
+    private final String filePrefix;
+    private final TaskCodec<Task> codec;
+    private final int hotCapacity;
+    private final int segmentBytes;
+    private final Executor prefetcher;
+    private final Deque<Task> hot;
+    private final Deque<Segment> segments;
+    private Consumer<Task> onDispose;
+    private Segment toPrefetch;
+    private int segmentIndex;
+    private long spilledCount;
+    private volatile long count;
+    private boolean closed;
+
+    public SpillingStorage(Path directory, String filePrefix, TaskCodec<Task> codec, int hotCapacity, int segmentBytes) throws IOException {
+        this(directory, filePrefix, codec, hotCapacity, segmentBytes, Runnable::run);
+    }
+
+    /**
+     * @param filePrefix   segments are named filePrefix-index.spill, indices continue after those already in the directory.
+     * @param segmentBytes the size of a segment, a task whose encoding is larger than a whole segment cannot be spilled.
+     * @param prefetcher   loads the next segment into memory, it is called once the fetch released the storage's lock,
+     *                     and it is the fetching thread itself unless given otherwise.
+     */
+    public SpillingStorage(Path directory, String filePrefix, TaskCodec<Task> codec, int hotCapacity, int segmentBytes, Executor prefetcher) throws IOException {
+        if (hotCapacity < 1) {
+            throw new IllegalArgumentException("hotCapacity must be strictly positive");
+        }
+        if (segmentBytes < Integer.BYTES) {
+            throw new IllegalArgumentException("segmentBytes must be able to hold a record header");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.filePrefix = filePrefix;
+        this.codec = codec;
+        this.hotCapacity = hotCapacity;
+        this.segmentBytes = segmentBytes;
+        this.prefetcher = prefetcher;
+        hot = new ArrayDeque<>(hotCapacity);
+        segments = new ArrayDeque<>();
+        onDispose = __ -> {};
+        toPrefetch = null;
+        segmentIndex = nextFreeIndex();
+        spilledCount = 0;
+        count = 0;
+        closed = false;
+    }
+
+    /**
+     * The listener is only called by {@link #close()}, with the tasks it discards.
+     */
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the task has to be spilled and its encoding is larger than a segment
+     * @throws UncheckedIOException     if a segment could not be created
+     */
+    @Override
+    public synchronized void store(Task task) {
+        storeUnsafe(task);
+    }
+
+    @Override
+    public synchronized void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            storeUnsafe(task);
+        }
+    }
+
+    private void storeUnsafe(Task task) {
+        if (closed) {
+            throw new IllegalStateException("storage is closed");
+        }
+        if (spilledCount == 0 && hot.size() < hotCapacity) {
+            hot.addLast(task);
+        } else {
+            spill(codec.encode(task));
+        }
+        count++;
+    }
+
+    private void spill(byte[] bytes) {
+        int recordBytes = Integer.BYTES + bytes.length;
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("encoded task of " + bytes.length + " bytes does not fit in a segment");
+        }
+        Segment writing = segments.peekLast();
+        if (writing == null || writing.buffer.remaining() < recordBytes) {
+            writing = openSegment();
+        }
+        writing.buffer.putInt(bytes.length);
+        writing.buffer.put(bytes);
+        spilledCount++;
+    }
+
+    /**
+     * A task the codec fails to decode stays stored, and the exception of the codec is thrown.
+     */
+    @Override
+    public Optional<Task> fetch() {
+        Task task;
+        Segment prefetched;
+        synchronized (this) {
+            task = fetchUnsafe();
+            prefetched = takeToPrefetch();
+        }
+        prefetch(prefetched);
+        return Optional.ofNullable(task);
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> fetched;
+        Segment prefetched;
+        synchronized (this) {
+            fetched = new ArrayList<>((int) Math.min(max, Math.min(count, hotCapacity)));
+            while (fetched.size() < max) {
+                Task task = fetchUnsafe();
+                if (task == null) {
+                    break;
+                }
+                fetched.add(task);
+            }
+            prefetched = takeToPrefetch();
+        }
+        prefetch(prefetched);
+        return fetched;
+    }
+
+    private Task fetchUnsafe() {
+        if (hot.isEmpty() && spilledCount > 0) {
+            refill();
+        }
+        Task task = hot.pollFirst();
+        if (task != null) {
+            count--;
+        }
+        return task;
+    }
+
+    private void refill() {
+        while (hot.size() < hotCapacity && spilledCount > 0) {
+            hot.addLast(readUnsafe());
+        }
+        if (spilledCount == 0) {
+            // the disk is drained, the last segment is kept for the next spill
+            Segment last = segments.getLast();
+            last.buffer.clear();
+            last.readPosition = 0;
+        }
+    }
+
+    /**
+     * Decodes the oldest spilled task and only then takes it off the disk, so a task the codec fails on stays spilled.
+     */
+    private Task readUnsafe() {
+        Segment reading = segments.getFirst();
+        while (reading.readPosition == reading.buffer.position()) {
+            segments.removeFirst();
+            delete(reading);
+            Iterator<Segment> following = segments.iterator();
+            reading = following.next();
+            toPrefetch = following.hasNext() ? following.next() : null;
+        }
+        int length = reading.buffer.getInt(reading.readPosition);
+        byte[] bytes = new byte[length];
+        reading.buffer.get(reading.readPosition + Integer.BYTES, bytes);
+        Task task = codec.decode(bytes);
+        reading.readPosition += Integer.BYTES + length;
+        spilledCount--;
+        return task;
+    }
+
+    private Segment takeToPrefetch() {
+        Segment segment = toPrefetch;
+        toPrefetch = null;
+        return segment;
+    }
+
+    /**
+     * Called without the storage's lock, since with the default prefetcher the load is done by the fetching thread.
+     * A segment that was read and deleted meanwhile remains mapped, so loading it is harmless.
+     */
+    private void prefetch(Segment segment) {
+        if (segment != null) {
+            prefetcher.execute(segment.buffer::load);
+        }
+    }
+
+    private Segment openSegment() {
+        Path path = directory.resolve(filePrefix + "-" + segmentIndex++ + ".spill");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping remains valid once the channel is closed
+            Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int nextFreeIndex() throws IOException {
+        int next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, filePrefix + "-*.spill")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String index = name.substring(filePrefix.length() + 1, name.length() - ".spill".length());
+                try {
+                    next = Math.max(next, Integer.parseInt(index) + 1);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the amount of stored tasks, on the heap and on the disk
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Discards all the stored tasks, decoding those that are spilled, and deletes the segments.
+     * The disposal listeners are called with the discarded tasks once the storage's lock is released,
+     * since a listener may take the lock of a limiter that stores into this storage while holding it.
+     * When the codec fails to decode a spilled task, the tasks discarded before it are still disposed, and the exception of the codec is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        List<Task> discarded = new ArrayList<>();
+        try {
+            synchronized (this) {
+                closed = true;
+                discarded.addAll(hot);
+                hot.clear();
+                try {
+                    while (spilledCount > 0) {
+                        discarded.add(readUnsafe());
+                    }
+                } finally {
+                    spilledCount = 0;
+                    count = 0;
+                    toPrefetch = null;
+                    while (!segments.isEmpty()) {
+                        Files.deleteIfExists(segments.removeFirst().path);
+                    }
+                }
+            }
+        } finally {
+            for (Task task : discarded) {
+                onDispose.accept(task);
+            }
+        }
+    }
+
+    /**
+     * The buffer's position is where the next record is written.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            readPosition = 0;
+        }
+    }
+}
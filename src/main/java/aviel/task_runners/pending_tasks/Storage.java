@@ -1,9 +1,41 @@
 package aviel.task_runners.pending_tasks;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface Storage<Task> {
     void store(Task task);
     Optional<Task> fetch();
     boolean isEmpty();
+
+    /**
+     * Registers a listener that is called with every task the storage discards, that is, a stored task that would never be fetched.
+     * Storages that never discard tasks may ignore the listener.
+     */
+    default void addDisposalListener(Consumer<? super Task> listener) {
+    }
+
+    default void storeAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            store(task);
+        }
+    }
+
+    /**
+     * @return at most max tasks, in the order they would have been returned by consecutive calls to {@link #fetch()}
+     */
+    default List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, 16));
+        while (fetched.size() < max) {
+            Optional<Task> task = fetch();
+            if (task.isEmpty()) {
+                break;
+            }
+            fetched.add(task.get());
+        }
+        return fetched;
+    }
 }
@@ -0,0 +1,172 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.ThisShouldNotHappen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link RandomStorage} for many concurrent producers.
+ * The keys are spread over stripes, each a RandomStorage of its own with its own lock and its own random generator,
+ * so operations on keys of different stripes do not contend.
+ * To dispose a task a stripe is chosen by a chance proportional to its amount of tasks, and to fetch a task by a chance proportional to its amount of keys,
+ * then the stripe chooses as a RandomStorage does, so the distributions of RandomStorage hold up to the changes made by concurrent operations meanwhile.
+ * The amount of stored tasks never exceeds maxStoredTasks, a store into a full storage disposes a task before its own task is stored.
+ */
+public class StripedRandomStorage<Key, Task extends KeyedTask<Key>> implements Storage<Task> {
+    /*
+     * implementation notes:
+     * The count is the amount of stored tasks plus the amount of stores that reserved room and did not store yet.
+     * A store either reserves room by incrementing the count, or takes over the room of a task it disposes, so the count never exceeds maxStoredTasks.
+     * The stripes are never asked to dispose by themselves, since together they hold no more tasks than the count.
+     */
+    private final RandomStorage<Key, Task>[] stripes;
+    private final int maxStoredTasks;
+    private final AtomicInteger count;
+    private volatile Consumer<Task> onDispose;
+
+    public StripedRandomStorage(int stripesCount, int maxStoredTasks, Consumer<Task> onDispose) {
+        this(new SplittableRandom(), stripesCount, maxStoredTasks, onDispose);
+    }
+
+    /**
+     * @param random split into the random generators of the stripes.
+     *               The stripe chosen by each operation is drawn from the random generator of the calling thread.
+     */
+    public StripedRandomStorage(SplittableRandom random, int stripesCount, int maxStoredTasks, Consumer<Task> onDispose) {
+        if (stripesCount < 1) {
+            throw new IllegalArgumentException("stripesCount must be strictly positive");
+        }
+        if (maxStoredTasks < 1) {
+            throw new IllegalArgumentException("maxStoredTasks must have a strictly positive value");
+        }
+        @SuppressWarnings("unchecked")
+        RandomStorage<Key, Task>[] stripes = (RandomStorage<Key, Task>[]) new RandomStorage<?, ?>[stripesCount];
+        int initialCapacity = Math.max(1, maxStoredTasks / stripesCount);
+        for (int i = 0; i < stripesCount; i++) {
+            stripes[i] = new RandomStorage<>(random.split(), maxStoredTasks, initialCapacity, __ -> {
+                throw new ThisShouldNotHappen("stripes should never be full");
+            });
+        }
+        this.stripes = stripes;
+        this.maxStoredTasks = maxStoredTasks;
+        count = new AtomicInteger(0);
+        this.onDispose = onDispose;
+    }
+
+    @Override
+    public synchronized void addDisposalListener(Consumer<? super Task> listener) {
+        onDispose = onDispose.andThen(listener);
+    }
+
+    @Override
+    public void store(Task task) {
+        while (!tryReserve()) {
+            Task disposed = takeFromStripe(RandomStorage::size, RandomStorage::removeWeightedly);
+            if (disposed != null) {
+                onDispose.accept(disposed);
+                break;
+            }
+            // the storage is full of reservations whose tasks are about to be stored
+            Thread.onSpinWait();
+        }
+        stripeOf(task.key()).store(task);
+    }
+
+    private boolean tryReserve() {
+        for (int current = count.get(); current < maxStoredTasks; current = count.get()) {
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private RandomStorage<Key, Task> stripeOf(Key key) {
+        int hash = Objects.hashCode(key);
+        hash ^= hash >>> 16;
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    @Override
+    public Optional<Task> fetch() {
+        return Optional.ofNullable(poll());
+    }
+
+    @Override
+    public List<Task> fetchUpTo(int max) {
+        List<Task> fetched = new ArrayList<>(Math.min(max, count.get()));
+        while (fetched.size() < max) {
+            Task task = poll();
+            if (task == null) {
+                break;
+            }
+            fetched.add(task);
+        }
+        return fetched;
+    }
+
+    private Task poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        Task task = takeFromStripe(RandomStorage::keyCount, RandomStorage::poll);
+        if (task != null) {
+            count.decrementAndGet();
+        }
+        return task;
+    }
+
+    /**
+     * Chooses a stripe by a chance proportional to its weight and takes a task from it.
+     * Each weight is read under its stripe's lock, which also keeps a store that spins on a full storage reading current weights,
+     * but the stripes may change between the reads, so when the chosen stripe turns out empty any stripe that is not empty is taken from instead.
+     *
+     * @return the taken task, or null if all stripes were empty
+     */
+    private Task takeFromStripe(ToIntFunction<RandomStorage<Key, Task>> weight, Function<RandomStorage<Key, Task>, Task> take) {
+        long totalWeight = 0;
+        for (RandomStorage<Key, Task> stripe : stripes) {
+            totalWeight += weight.applyAsInt(stripe);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (totalWeight > 0) {
+            long chosen = random.nextLong(totalWeight);
+            for (RandomStorage<Key, Task> stripe : stripes) {
+                chosen -= weight.applyAsInt(stripe);
+                if (chosen < 0) {
+                    Task task = take.apply(stripe);
+                    if (task != null) {
+                        return task;
+                    }
+                    break;
+                }
+            }
+        }
+        int first = random.nextInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Task task = take.apply(stripes[(first + i) % stripes.length]);
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The storage is not empty while stores that reserved room did not store their tasks yet, even though a fetch may find nothing meanwhile.
+     */
+    @Override
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+}
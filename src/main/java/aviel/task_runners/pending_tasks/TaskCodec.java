@@ -0,0 +1,11 @@
+package aviel.task_runners.pending_tasks;
+
+/**
+ * Turns tasks into bytes and back, for storages that keep tasks off the heap.
+ * A task is decoded from exactly the bytes it was encoded to.
+ */
+public interface TaskCodec<Task> {
+    byte[] encode(Task task);
+
+    Task decode(byte[] bytes);
+}
@@ -1,16 +1,22 @@
 package aviel.task_runners.rate_limiters;
 
+import aviel.task_runners.Clock;
 import aviel.task_runners.DurationForScheduler;
 import aviel.task_runners.KeyedTask;
+import aviel.task_runners.NanoTimeRing;
+import aviel.task_runners.TaskScheduler;
 import aviel.task_runners.Utils;
+import aviel.task_runners.events.TaskAdmissionEvent;
 import aviel.task_runners.pending_tasks.Storage;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
@@ -20,78 +26,197 @@ import java.util.function.Supplier;
  * A pended task will be fetched on the next instant that is possible for its execution without breaking the limit property promised.
  * The pending and fetching of tasks is managed by the PendingTasks created by the provided pendingTasksCreator at construction.
  */
-public class ExactRateLimiter<Key, Task extends KeyedTask<Key>> implements RateLimiter<Task> {
-    private final Deque<Instant> executed;
+public class ExactRateLimiter<Key, Task extends KeyedTask<Key>> implements RateLimiter<Task>, PermitLimiter {
+    private final NanoTimeRing executed;
     private final Storage<Task> pending;
-    private final ScheduledExecutorService pendingScheduler;
+    private final TaskScheduler pendingScheduler;
+    private final Clock clock;
+    private final Executor executor;
     private final AtomicBoolean isScheduled;
-    private final Duration duration;
-    private final int limit;
+    private final long durationNanos;
 
     public ExactRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
                             ScheduledExecutorService pendingScheduler,
                             Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, duration, limit);
+    }
+
+    public ExactRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            ScheduledExecutorService pendingScheduler,
+                            Executor executor,
+                            Duration duration, int limit) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, duration, limit);
+    }
+
+    public ExactRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            TaskScheduler pendingScheduler,
+                            Executor executor,
+                            Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, duration, limit);
+    }
+
+    /**
+     * @param clock    the source of time, the system clock unless the limiter is simulated.
+     * @param executor executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     */
+    public ExactRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            TaskScheduler pendingScheduler,
+                            Clock clock,
+                            Executor executor,
+                            Duration duration, int limit) {
         if (limit < 1) {
             throw new IllegalArgumentException("limit must be strictly positive");
         }
         if (!duration.isPositive()) {
             throw new IllegalArgumentException("duration must be strictly positive");
         }
-        executed = new LinkedList<>();
+        executed = new NanoTimeRing(limit);
         pending = pendingTasksCreator.get();
         this.pendingScheduler = pendingScheduler;
+        this.clock = clock;
+        this.executor = executor;
         isScheduled = new AtomicBoolean(false);
-        this.duration = duration;
-        this.limit = limit;
+        durationNanos = Utils.toNanosSaturated(duration);
     }
 
     @Override
-    public synchronized void submitTask(Task task) {
-        Instant now = Instant.now();
-        while (!executed.isEmpty() &&
-               now.minus(duration).isAfter(executed.getFirst())) {
-            executed.removeFirst();
+    public void submitTask(Task task) {
+        TaskAdmissionEvent event = new TaskAdmissionEvent();
+        event.begin();
+        synchronized (this) {
+            submitTaskUnsafe(task, event);
+        }
+        if (event.shouldCommit()) {
+            event.commit(this, task.key());
         }
-        if (executed.size() < limit) {
+    }
+
+    /**
+     * The event is ended once the task is decided on, before an admitted task is executed,
+     * so that its duration does not include running the task when the executor runs it directly.
+     */
+    private void submitTaskUnsafe(Task task, TaskAdmissionEvent event) {
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        if (!executed.isFull()) {
             executed.addLast(now);
-            task.run();
+            event.admitted = true;
+            event.end();
+            executor.execute(task);
         } else {
             pending.store(task);
             schedulePending();
+            event.admitted = false;
+            event.end();
+        }
+    }
+
+    @Override
+    public synchronized void submitAll(Collection<? extends Task> tasks) {
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        int admitted = Math.min(executed.remainingCapacity(), tasks.size());
+        executed.addLast(now, admitted);
+        Iterator<? extends Task> iterator = tasks.iterator();
+        for (int i = 0; i < admitted; i++) {
+            Task task = iterator.next();
+            executor.execute(task);
+            commitAdmission(task, true);
+        }
+        if (iterator.hasNext()) {
+            List<Task> rest = new ArrayList<>(tasks.size() - admitted);
+            iterator.forEachRemaining(rest::add);
+            pending.storeAll(rest);
+            schedulePending();
+            for (Task task : rest) {
+                commitAdmission(task, false);
+            }
+        }
+    }
+
+    /**
+     * Batched submissions are decided at once, so their events are instant, one per task.
+     */
+    private void commitAdmission(Task task, boolean admitted) {
+        TaskAdmissionEvent event = new TaskAdmissionEvent();
+        if (event.shouldCommit()) {
+            event.admitted = admitted;
+            event.commit(this, task.key());
+        }
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(int permits) {
+        validatePermits(permits);
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        if (permits > executed.remainingCapacity() || !pending.isEmpty()) {
+            return false;
+        }
+        executed.addLast(now, permits);
+        return true;
+    }
+
+    @Override
+    public synchronized Duration untilAvailable(int permits) {
+        validatePermits(permits);
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        int missing = permits - executed.remainingCapacity();
+        if (missing <= 0) {
+            return Duration.ZERO;
+        }
+        long lastToExpire = executed.get(missing - 1);
+        return Duration.ofNanos(durationNanos - (now - lastToExpire)).plusNanos(1);
+    }
+
+    private void validatePermits(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("permits must be strictly positive");
+        }
+        if (permits > executed.capacity()) {
+            throw new IllegalArgumentException("permits must not exceed limit");
         }
     }
 
     private void schedulePending() {
         if (isScheduled.compareAndSet(false, true)) {
-            schedulePendingUnsafe();
+            try {
+                schedulePendingUnsafe();
+            } catch (RuntimeException | Error e) {
+                isScheduled.set(false);
+                throw e;
+            }
         }
     }
 
     private void schedulePendingUnsafe() {
-        Duration untilNextPending = duration.minus(Utils.instantMinus(Instant.now(), executed.getFirst()));
-        DurationForScheduler.from(untilNextPending).schedule(pendingScheduler, this::pendingExecutorTask);
+        long untilNextPending = durationNanos - (clock.nanoTime() - executed.getFirst()) + 1;
+        new DurationForScheduler(untilNextPending, TimeUnit.NANOSECONDS).schedule(pendingScheduler, this::pendingExecutorTask, this);
     }
 
+    /**
+     * isScheduled is cleared unless the drain is rescheduled, also when the executor or the scheduler throws,
+     * so that the next pended task schedules the drain again.
+     */
     private synchronized void pendingExecutorTask() {
-        while (true) {
-            while (Instant.now().minus(duration).isAfter(executed.getFirst())) {
-                executed.removeFirst();
+        boolean rescheduled = false;
+        try {
+            long now = clock.nanoTime();
+            executed.removeOlderThan(now, durationNanos);
+            List<Task> nextPending = pending.fetchUpTo(executed.remainingCapacity());
+            executed.addLast(now, nextPending.size());
+            for (Task task : nextPending) {
+                executor.execute(task);
             }
-            if (executed.size() >= limit) {
-                break;
+            if (executed.isFull()) {
+                schedulePendingUnsafe();
+                rescheduled = true;
             }
-            Optional<Task> nextPending = pending.fetch();
-            if (nextPending.isEmpty()) {
-                break;
+        } finally {
+            if (!rescheduled) {
+                isScheduled.set(false);
             }
-            Instant now = Instant.now();
-            executed.addLast(now);
-            nextPending.get().run();
-        }
-        if (executed.size() >= limit) {
-            schedulePendingUnsafe();
-        } else {
-            isScheduled.set(false);
         }
     }
 }
@@ -1,15 +1,21 @@
 package aviel.task_runners.rate_limiters;
 
+import aviel.task_runners.Clock;
 import aviel.task_runners.DurationForScheduler;
+import aviel.task_runners.NanoTimeRing;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.ThisShouldNotHappen;
 import aviel.task_runners.Utils;
 import aviel.task_runners.pending_tasks.Storage;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
@@ -20,19 +26,53 @@ import java.util.function.Supplier;
  * The pending and fetching of tasks is managed by the PendingTasks created by the provided pendingTasksCreator at construction.
  */
 public class ExactUniformingRateLimiter<Task extends Runnable> implements RateLimiter<Task> {
-    private final Deque<Instant> executed;
+    private final NanoTimeRing executed;
     private final Storage<Task> pending;
-    private final ScheduledExecutorService pendingScheduler;
+    private final TaskScheduler pendingScheduler;
+    private final Clock clock;
+    private final Executor executor;
     private final AtomicBoolean isScheduled;
-    private final Duration duration;
-    private final int limit;
+    private final long durationNanos;
+    private final long uniformIntervalNanos;
     private final double uniformingRate;
     private final Object completionLock;
+    private final Map<Task, CompletableFuture<TaskOutcome>> outcomes;
+    private List<Runnable> deferredCompletions;
+    private CompletableFuture<Void> drained;
 
     public ExactUniformingRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
                                       ScheduledExecutorService pendingScheduler,
                                       double uniformingRate,
                                       Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, uniformingRate, duration, limit);
+    }
+
+    public ExactUniformingRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                      ScheduledExecutorService pendingScheduler,
+                                      Executor executor,
+                                      double uniformingRate,
+                                      Duration duration, int limit) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, uniformingRate, duration, limit);
+    }
+
+    public ExactUniformingRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                      TaskScheduler pendingScheduler,
+                                      Executor executor,
+                                      double uniformingRate,
+                                      Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, uniformingRate, duration, limit);
+    }
+
+    /**
+     * @param clock    the source of time, the system clock unless the limiter is simulated.
+     * @param executor executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     */
+    public ExactUniformingRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                      TaskScheduler pendingScheduler,
+                                      Clock clock,
+                                      Executor executor,
+                                      double uniformingRate,
+                                      Duration duration, int limit) {
         if (limit < 1) {
             throw new IllegalArgumentException("limit must be strictly positive");
         }
@@ -42,89 +82,250 @@ public class ExactUniformingRateLimiter<Task extends Runnable> implements RateLi
         if (uniformingRate < 0 || uniformingRate > 1) {
             throw new IllegalArgumentException("uniformingRate must be a value between 0 and 1");
         }
-        executed = new LinkedList<>();
+        executed = new NanoTimeRing(limit);
         pending = pendingTasksCreator.get();
         this.uniformingRate = uniformingRate;
         this.pendingScheduler = pendingScheduler;
+        this.clock = clock;
+        this.executor = executor;
         isScheduled = new AtomicBoolean(false);
-        this.duration = duration;
-        this.limit = limit;
+        durationNanos = Utils.toNanosSaturated(duration);
+        uniformIntervalNanos = durationNanos / limit;
         completionLock = new Object();
+        outcomes = new IdentityHashMap<>();
+        deferredCompletions = List.of();
+        drained = CompletableFuture.completedFuture(null);
+        pending.addDisposalListener(this::onDisposed);
     }
 
     @Override
     public void submitTask(Task task) {
+        runLocked(() -> submitTaskUnsafe(task));
+    }
+
+    /**
+     * Submits the task like {@link #submitTask(Task)} does.
+     * The task instance must not be submitted again until the returned future is completed.
+     * Outcomes are matched to tasks by instance, so the futures of tasks that a storage hands back as other instances,
+     * as a SpillingStorage does with the tasks it decoded, are never completed.
+     *
+     * @return a future that is completed once the task was executed, disposed by the pending storage,
+     * or rejected by the executor or by a full pending storage.
+     * When the task itself throws, the future is completed exceptionally.
+     * Stages depending on the returned future may run on the executor, on the submitting thread or on the draining thread,
+     * but never while the limiter is locked, also when the executor runs the task on the thread that admitted it.
+     */
+    public CompletableFuture<TaskOutcome> submitAsync(Task task) {
+        CompletableFuture<TaskOutcome> outcome = new CompletableFuture<>();
+        runLocked(() -> {
+            outcomes.put(task, outcome);
+            try {
+                submitTaskUnsafe(task);
+            } catch (RejectedExecutionException e) {
+                // the pending storage refused the task, so it holds no reference to it
+                outcomes.remove(task);
+                completeOutsideLock(() -> outcome.complete(TaskOutcome.REJECTED));
+            }
+        });
+        return outcome;
+    }
+
+    private void submitTaskUnsafe(Task task) {
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        if (!executed.isFull()) {
+            executed.addLast(now);
+            dispatch(task);
+        } else {
+            storePending(task);
+            schedulePending();
+        }
+    }
+
+    @Override
+    public void submitAll(Collection<? extends Task> tasks) {
+        runLocked(() -> submitAllUnsafe(tasks));
+    }
+
+    private void submitAllUnsafe(Collection<? extends Task> tasks) {
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        int admitted = Math.min(executed.remainingCapacity(), tasks.size());
+        executed.addLast(now, admitted);
+        Iterator<? extends Task> iterator = tasks.iterator();
+        for (int i = 0; i < admitted; i++) {
+            dispatch(iterator.next());
+        }
+        if (iterator.hasNext()) {
+            List<Task> rest = new ArrayList<>(tasks.size() - admitted);
+            iterator.forEachRemaining(rest::add);
+            try {
+                pending.storeAll(rest);
+            } finally {
+                // a storage that rejects keeps the tasks before the rejected one, and those still need the drain
+                if (!pending.isEmpty()) {
+                    if (drained.isDone()) {
+                        drained = new CompletableFuture<>();
+                    }
+                    schedulePending();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the task before renewing drained, so that a task the storage rejects leaves drained as it was.
+     */
+    private void storePending(Task task) {
+        pending.store(task);
+        if (drained.isDone()) {
+            drained = new CompletableFuture<>();
+        }
+    }
+
+    private void dispatch(Task task) {
+        CompletableFuture<TaskOutcome> outcome = outcomes.isEmpty() ? null : outcomes.remove(task);
+        if (outcome == null) {
+            executor.execute(task);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException | Error e) {
+                    completeOutsideLock(() -> outcome.completeExceptionally(e));
+                    throw e;
+                }
+                completeOutsideLock(() -> outcome.complete(TaskOutcome.EXECUTED));
+            });
+        } catch (RejectedExecutionException e) {
+            completeOutsideLock(() -> outcome.complete(TaskOutcome.REJECTED));
+        }
+    }
+
+    /**
+     * Called by the pending storage, mostly while completionLock is held since tasks are stored and fetched under it.
+     * A storage that disposes by itself, as a SpillingStorage does when it is closed, calls it without the lock.
+     */
+    private void onDisposed(Task task) {
+        CompletableFuture<TaskOutcome> outcome;
         synchronized (completionLock) {
-            Instant now = Instant.now();
-            cleanOldExecutedRecords();
-            if (executed.size() < limit) {
-                executed.addLast(now);
-                task.run();
-            } else {
-                pending.store(task);
-                schedulePending();
+            outcome = outcomes.isEmpty() ? null : outcomes.remove(task);
+        }
+        if (outcome != null) {
+            completeOutsideLock(() -> outcome.complete(TaskOutcome.DISPOSED));
+        }
+    }
+
+    /**
+     * Runs the action under completionLock, then runs the completions it deferred, also when the action throws.
+     */
+    private void runLocked(Runnable action) {
+        List<Runnable> completions = List.of();
+        try {
+            synchronized (completionLock) {
+                try {
+                    action.run();
+                } finally {
+                    completions = deferredCompletions;
+                    deferredCompletions = List.of();
+                }
             }
-            if (pending.isEmpty()) {
-                completionLock.notifyAll();
+        } finally {
+            for (Runnable completion : completions) {
+                completion.run();
             }
         }
     }
 
+    /**
+     * Completes right away unless completionLock is held, as it is when the executor runs a task on the thread that dispatched it.
+     * Then the completion is deferred until the lock is released, so that dependent stages do not run while the limiter is locked.
+     */
+    private void completeOutsideLock(Runnable completion) {
+        if (!Thread.holdsLock(completionLock)) {
+            completion.run();
+            return;
+        }
+        if (deferredCompletions.isEmpty()) {
+            deferredCompletions = new ArrayList<>();
+        }
+        deferredCompletions.add(completion);
+    }
+
     private void schedulePending() {
         if (isScheduled.compareAndSet(false, true)) {
-            schedulePendingUnsafe();
+            try {
+                schedulePendingUnsafe();
+            } catch (RuntimeException | Error e) {
+                isScheduled.set(false);
+                throw e;
+            }
         }
     }
 
     private void schedulePendingUnsafe() {
-        Duration uniformInterval = duration.dividedBy(limit);
-        Duration untilNextPending = executed.size() >= limit
-                                    ? duration.minus(Utils.instantMinus(Instant.now(), executed.getFirst()))
-                                    : Duration.ZERO;
-        if (untilNextPending.compareTo(uniformInterval) < 0) {
-            untilNextPending = untilNextPending.plus(uniformInterval.minus(untilNextPending)
-                                                                    .dividedBy(1_000_000L)
-                                                                    .multipliedBy((long) (1_000_000d * uniformingRate)));
+        long untilNextPending = executed.isFull()
+                                ? durationNanos - (clock.nanoTime() - executed.getFirst()) + 1
+                                : 0;
+        if (untilNextPending < uniformIntervalNanos) {
+            untilNextPending += (long) ((uniformIntervalNanos - untilNextPending) * uniformingRate);
         }
-        DurationForScheduler.from(untilNextPending).schedule(pendingScheduler, this::pendingExecutorTask);
+        new DurationForScheduler(untilNextPending, TimeUnit.NANOSECONDS).schedule(pendingScheduler, this::pendingExecutorTask, this);
     }
 
+    /**
+     * A storage may dispose tasks on fetch, such as expired ones, and their outcomes are completed once the lock is released as well.
+     */
     private void pendingExecutorTask() {
-        synchronized (completionLock) {
-            try {
-                cleanOldExecutedRecords();
-                if (executed.size() < limit) {
-                    Optional<Task> nextPending = pending.fetch();
-                    if (nextPending.isPresent()) {
-                        Instant now = Instant.now();
-                        executed.addLast(now);
-                        nextPending.get().run();
-                    }
-                }
-                if (!pending.isEmpty()) {
-                    schedulePendingUnsafe();
-                } else {
-                    isScheduled.set(false);
-                    completionLock.notifyAll();
+        runLocked(this::drainUnsafe);
+    }
+
+    private void drainUnsafe() {
+        boolean rescheduled = false;
+        try {
+            long now = clock.nanoTime();
+            executed.removeOlderThan(now, durationNanos);
+            if (!executed.isFull()) {
+                Optional<Task> nextPending = pending.fetch();
+                if (nextPending.isPresent()) {
+                    executed.addLast(now);
+                    dispatch(nextPending.get());
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            }
+            if (!pending.isEmpty()) {
+                schedulePendingUnsafe();
+                rescheduled = true;
+            } else {
+                CompletableFuture<Void> completedDrain = drained;
+                completeOutsideLock(() -> completedDrain.complete(null));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // also when the executor or the scheduler threw, so that the next pended task schedules the drain again
+            if (!rescheduled) {
+                isScheduled.set(false);
             }
         }
     }
 
-    private void cleanOldExecutedRecords() {
-        while (!executed.isEmpty() &&
-               Instant.now().minus(duration).isAfter(executed.getFirst())) {
-            executed.removeFirst();
+    /**
+     * @return a future that is completed once there are no pending tasks,
+     * already completed if there are none right now.
+     */
+    public CompletableFuture<Void> drained() {
+        synchronized (completionLock) {
+            return drained;
         }
     }
 
     public void awaitCurrentTasks() throws InterruptedException {
-        synchronized (completionLock) {
-            while (!pending.isEmpty()) {
-                completionLock.wait();
-            }
+        try {
+            drained().get();
+        } catch (ExecutionException e) {
+            throw new ThisShouldNotHappen("drained is never completed exceptionally", e);
         }
     }
 }
@@ -0,0 +1,183 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.DurationForScheduler;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.Utils;
+import aviel.task_runners.pending_tasks.Storage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * RateLimiter that executes tasks at a rate of limit tasks per duration following the generic cell rate algorithm (GCRA).
+ * Up to limit tasks may be executed at once, after which a task may be executed every duration / limit.
+ * Unlike {@link ExactRateLimiter} its state is a single theoretical arrival time no matter how high limit is,
+ * and admission is decided by CAS without taking a lock.
+ * Any task that is submitted while it may not be executed, or while other tasks are pending, is pended.
+ * The pending and fetching of tasks is managed by the Storage created by the provided pendingTasksCreator at construction.
+ */
+public class GcraRateLimiter<Task extends Runnable> implements RateLimiter<Task>, PermitLimiter {
+    private final TheoreticalArrivalTime arrivalTime;
+    private final Storage<Task> pending;
+    private final TaskScheduler pendingScheduler;
+    private final Clock clock;
+    private final Executor executor;
+    private final AtomicBoolean isScheduled;
+
+    public GcraRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                           ScheduledExecutorService pendingScheduler,
+                           Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, duration, limit);
+    }
+
+    public GcraRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                           ScheduledExecutorService pendingScheduler,
+                           Executor executor,
+                           Duration duration, int limit) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, duration, limit);
+    }
+
+    public GcraRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                           TaskScheduler pendingScheduler,
+                           Executor executor,
+                           Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, duration, limit);
+    }
+
+    /**
+     * @param clock    the source of time, the system clock unless the limiter is simulated.
+     * @param executor executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     */
+    public GcraRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                           TaskScheduler pendingScheduler,
+                           Clock clock,
+                           Executor executor,
+                           Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, clock, executor, emissionIntervalNanos(duration, limit), limit);
+    }
+
+    /**
+     * Used by {@link LoadBasedRateLimiter}, whose load is the theoretical arrival time of an emission interval of second / loadRate.
+     *
+     * @param burst the amount of tasks that may be executed at once, after which a task may be executed every emission interval.
+     */
+    GcraRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                    TaskScheduler pendingScheduler,
+                    Clock clock,
+                    Executor executor,
+                    long emissionIntervalNanos, int burst) {
+        arrivalTime = new TheoreticalArrivalTime(emissionIntervalNanos, burst, clock.nanoTime());
+        pending = pendingTasksCreator.get();
+        this.pendingScheduler = pendingScheduler;
+        this.clock = clock;
+        this.executor = executor;
+        isScheduled = new AtomicBoolean(false);
+    }
+
+    private static long emissionIntervalNanos(Duration duration, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be strictly positive");
+        }
+        if (!duration.isPositive()) {
+            throw new IllegalArgumentException("duration must be strictly positive");
+        }
+        long emissionIntervalNanos = Utils.toNanosSaturated(duration) / limit;
+        if (emissionIntervalNanos < 1) {
+            throw new IllegalArgumentException("duration / limit must be at least a nanosecond");
+        }
+        return emissionIntervalNanos;
+    }
+
+    @Override
+    public void submitTask(Task task) {
+        if (pending.isEmpty() && arrivalTime.tryAcquireAll(clock.nanoTime(), 1)) {
+            executor.execute(task);
+        } else {
+            pending.store(task);
+            schedulePending();
+        }
+    }
+
+    @Override
+    public void submitAll(Collection<? extends Task> tasks) {
+        int admitted = pending.isEmpty() ? arrivalTime.tryAcquire(clock.nanoTime(), tasks.size()) : 0;
+        Iterator<? extends Task> iterator = tasks.iterator();
+        for (int i = 0; i < admitted; i++) {
+            executor.execute(iterator.next());
+        }
+        if (iterator.hasNext()) {
+            List<Task> rest = new ArrayList<>(tasks.size() - admitted);
+            iterator.forEachRemaining(rest::add);
+            pending.storeAll(rest);
+            schedulePending();
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        validatePermits(permits);
+        return pending.isEmpty() && arrivalTime.tryAcquireAll(clock.nanoTime(), permits);
+    }
+
+    @Override
+    public Duration untilAvailable(int permits) {
+        validatePermits(permits);
+        return Duration.ofNanos(arrivalTime.untilAvailable(clock.nanoTime(), permits));
+    }
+
+    private void validatePermits(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("permits must be strictly positive");
+        }
+        if (permits > arrivalTime.burst()) {
+            throw new IllegalArgumentException("permits must not exceed limit");
+        }
+    }
+
+    private void schedulePending() {
+        if (isScheduled.compareAndSet(false, true)) {
+            try {
+                schedulePendingUnsafe();
+            } catch (RuntimeException | Error e) {
+                isScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void schedulePendingUnsafe() {
+        long untilNextPending = arrivalTime.untilAvailable(clock.nanoTime(), 1);
+        new DurationForScheduler(untilNextPending, TimeUnit.NANOSECONDS).schedule(pendingScheduler, this::pendingExecutorTask, this);
+    }
+
+    /**
+     * Runs only while isScheduled is set, so there is never more than one at a time.
+     */
+    private void pendingExecutorTask() {
+        try {
+            int granted = arrivalTime.tryAcquire(clock.nanoTime(), arrivalTime.burst());
+            List<Task> nextPending = pending.fetchUpTo(granted);
+            if (nextPending.size() < granted) {
+                arrivalTime.release(granted - nextPending.size());
+            }
+            for (Task task : nextPending) {
+                executor.execute(task);
+            }
+        } finally {
+            // also when the executor threw, so that the next pended task schedules the drain again
+            isScheduled.set(false);
+        }
+        if (!pending.isEmpty()) {
+            schedulePending();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.DurationForScheduler;
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.NanoTimeRing;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.Utils;
+import aviel.task_runners.pending_tasks.Storage;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * RateLimiter for which no more than limit tasks are executed at any duration time-duration
+ * and no more than keyLimit tasks of the same key are executed at any keyDuration time-duration.
+ * A task is executed only when both limits allow it, and its execution counts against both of them at once.
+ * Any task that would break either limit is pended, once, in the single storage created by the provided pendingTasksCreator.
+ * When pending tasks are fetched, a task whose key limit is still reached is held by the limiter, ahead of the storage,
+ * and is executed once its key limit allows it before any task fetched after it, so tasks keep the order they were fetched in.
+ * At most limit tasks are held, and held tasks are no longer subject to the disposal policy of the storage.
+ */
+public class HierarchicalRateLimiter<Key, Task extends KeyedTask<Key>> implements RateLimiter<Task> {
+    private static final int INITIAL_KEY_WINDOW_CAPACITY = 2;
+
+    private final NanoTimeRing executed;
+    private final Map<Key, NanoTimeRing> executedByKey;
+    private final Deque<Task> held;
+    private final Storage<Task> pending;
+    private final TaskScheduler pendingScheduler;
+    private final Clock clock;
+    private final Executor executor;
+    private final long durationNanos;
+    private final long keyDurationNanos;
+    private final int keyLimit;
+    private boolean isScheduled;
+    private long scheduledAt;
+
+    public HierarchicalRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                   ScheduledExecutorService pendingScheduler,
+                                   Duration duration, int limit,
+                                   Duration keyDuration, int keyLimit) {
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, duration, limit, keyDuration, keyLimit);
+    }
+
+    public HierarchicalRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                   ScheduledExecutorService pendingScheduler,
+                                   Executor executor,
+                                   Duration duration, int limit,
+                                   Duration keyDuration, int keyLimit) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, duration, limit, keyDuration, keyLimit);
+    }
+
+    public HierarchicalRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                   TaskScheduler pendingScheduler,
+                                   Executor executor,
+                                   Duration duration, int limit,
+                                   Duration keyDuration, int keyLimit) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, duration, limit, keyDuration, keyLimit);
+    }
+
+    /**
+     * @param clock    the source of time, the system clock unless the limiter is simulated.
+     * @param executor executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     */
+    public HierarchicalRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                   TaskScheduler pendingScheduler,
+                                   Clock clock,
+                                   Executor executor,
+                                   Duration duration, int limit,
+                                   Duration keyDuration, int keyLimit) {
+        if (limit < 1 || keyLimit < 1) {
+            throw new IllegalArgumentException("limit and keyLimit must be strictly positive");
+        }
+        if (!duration.isPositive() || !keyDuration.isPositive()) {
+            throw new IllegalArgumentException("duration and keyDuration must be strictly positive");
+        }
+        executed = new NanoTimeRing(limit);
+        executedByKey = new LinkedHashMap<>(16, 0.75f, true);
+        held = new ArrayDeque<>();
+        pending = pendingTasksCreator.get();
+        this.pendingScheduler = pendingScheduler;
+        this.clock = clock;
+        this.executor = executor;
+        isScheduled = false;
+        scheduledAt = 0;
+        durationNanos = Utils.toNanosSaturated(duration);
+        keyDurationNanos = Utils.toNanosSaturated(keyDuration);
+        this.keyLimit = keyLimit;
+    }
+
+    @Override
+    public synchronized void submitTask(Task task) {
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        pruneIdleKeys(now);
+        NanoTimeRing keyExecuted = keyWindow(task.key(), now);
+        if (!executed.isFull() && !keyExecuted.isFull()) {
+            executeUnsafe(task, keyExecuted, now);
+        } else {
+            pending.store(task);
+            schedulePendingUnsafe(now, untilExpiry(now, executed.isFull() ? executed : keyExecuted));
+        }
+    }
+
+    /**
+     * @return the amount of keys whose windows are kept, keys with no executions within keyDuration are dropped gradually.
+     */
+    public synchronized int activeKeys() {
+        return executedByKey.size();
+    }
+
+    private void executeUnsafe(Task task, NanoTimeRing keyExecuted, long now) {
+        executed.addLast(now);
+        keyExecuted.addLast(now);
+        executor.execute(task);
+    }
+
+    private NanoTimeRing keyWindow(Key key, long now) {
+        NanoTimeRing keyExecuted = executedByKey.get(key);
+        if (keyExecuted == null) {
+            keyExecuted = new NanoTimeRing(Math.min(INITIAL_KEY_WINDOW_CAPACITY, keyLimit), keyLimit);
+            executedByKey.put(key, keyExecuted);
+        } else {
+            keyExecuted.removeOlderThan(now, keyDurationNanos);
+        }
+        return keyExecuted;
+    }
+
+    /**
+     * The windows are ordered by the last time their keys were looked at, which is never before their last execution.
+     * So the windows of idle keys gather at the eldest end, and they are dropped from there up to the first key that is not idle.
+     * It runs on every submission and drain, costing O(1) amortized per window dropped.
+     */
+    private void pruneIdleKeys(long now) {
+        Iterator<NanoTimeRing> windows = executedByKey.values().iterator();
+        while (windows.hasNext()) {
+            NanoTimeRing keyExecuted = windows.next();
+            keyExecuted.removeOlderThan(now, keyDurationNanos);
+            if (!keyExecuted.isEmpty()) {
+                return;
+            }
+            windows.remove();
+        }
+    }
+
+    private long untilExpiry(long now, NanoTimeRing window) {
+        long windowNanos = window == executed ? durationNanos : keyDurationNanos;
+        return windowNanos - (now - window.getFirst()) + 1;
+    }
+
+    /**
+     * A wakeup is scheduled unless one is already scheduled no later, an earlier wakeup supersedes the one scheduled before it.
+     */
+    private void schedulePendingUnsafe(long now, long untilNextPending) {
+        long at = now + untilNextPending;
+        if (isScheduled && at - scheduledAt >= 0) {
+            return;
+        }
+        boolean wasScheduled = isScheduled;
+        long previousAt = scheduledAt;
+        isScheduled = true;
+        scheduledAt = at;
+        try {
+            new DurationForScheduler(untilNextPending, TimeUnit.NANOSECONDS).schedule(pendingScheduler, () -> pendingExecutorTask(at), this);
+        } catch (RuntimeException | Error e) {
+            isScheduled = wasScheduled;
+            scheduledAt = previousAt;
+            throw e;
+        }
+    }
+
+    /**
+     * isScheduled is cleared as the drain starts, so that when the executor or the scheduler throws, the next pended task schedules the drain again.
+     * The held tasks are tried first, in the order they were fetched, and then the storage is fetched from.
+     */
+    private synchronized void pendingExecutorTask(long at) {
+        if (!isScheduled || at != scheduledAt) {
+            // superseded by an earlier wakeup
+            return;
+        }
+        isScheduled = false;
+        long now = clock.nanoTime();
+        executed.removeOlderThan(now, durationNanos);
+        pruneIdleKeys(now);
+        long untilNextPending = Long.MAX_VALUE;
+        Iterator<Task> heldTasks = held.iterator();
+        while (!executed.isFull() && heldTasks.hasNext()) {
+            Task task = heldTasks.next();
+            NanoTimeRing keyExecuted = keyWindow(task.key(), now);
+            if (keyExecuted.isFull()) {
+                untilNextPending = Math.min(untilNextPending, untilExpiry(now, keyExecuted));
+            } else {
+                heldTasks.remove();
+                executeUnsafe(task, keyExecuted, now);
+            }
+        }
+        while (!executed.isFull() && held.size() < executed.capacity()) {
+            Optional<Task> nextPending = pending.fetch();
+            if (nextPending.isEmpty()) {
+                break;
+            }
+            Task task = nextPending.get();
+            NanoTimeRing keyExecuted = keyWindow(task.key(), now);
+            if (keyExecuted.isFull()) {
+                held.addLast(task);
+                untilNextPending = Math.min(untilNextPending, untilExpiry(now, keyExecuted));
+            } else {
+                executeUnsafe(task, keyExecuted, now);
+            }
+        }
+        if (executed.isFull()) {
+            untilNextPending = Math.min(untilNextPending, untilExpiry(now, executed));
+        }
+        if (!held.isEmpty() || !pending.isEmpty()) {
+            schedulePendingUnsafe(now, untilNextPending == Long.MAX_VALUE ? 0 : untilNextPending);
+        }
+    }
+}
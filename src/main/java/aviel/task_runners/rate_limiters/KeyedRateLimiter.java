@@ -0,0 +1,247 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.DurationForScheduler;
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.NanoTimeRing;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.Utils;
+import aviel.task_runners.pending_tasks.Storage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * RateLimiter for which no more than limit tasks of the same key are executed at any duration time-duration.
+ * Every key is limited on its own as {@link ExactRateLimiter} limits all of its tasks, keys do not share a limit.
+ * A key is represented only while it is active, that is, while it has executions within the last duration or pending tasks.
+ * Inactive keys are evicted by a sweep that runs every duration as long as any key is represented.
+ * Keys are grouped by the sweep period they were last submitted to or drained in, so a sweep only looks at the keys
+ * that were left alone for a whole period, rather than at every key. A key's window that was grown by a burst
+ * is shrunk when the key is first looked at in a period after the burst has passed.
+ * Submissions of different keys do not contend on a common lock.
+ */
+public class KeyedRateLimiter<Key, Task extends KeyedTask<Key>> implements RateLimiter<Task> {
+    private static final int INITIAL_WINDOW_CAPACITY = 2;
+
+    private final ConcurrentHashMap<Key, KeyState> states;
+    private final Function<Key, KeyState> stateCreator;
+    private final Supplier<Storage<Task>> pendingTasksCreator;
+    private final TaskScheduler pendingScheduler;
+    private final Clock clock;
+    private final Executor executor;
+    private final AtomicBoolean isSweepScheduled;
+    private volatile Set<KeyState> currentGeneration;
+    private Set<KeyState> previousGeneration;
+    private final long durationNanos;
+    private final int limit;
+
+    public KeyedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            ScheduledExecutorService pendingScheduler,
+                            Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, duration, limit);
+    }
+
+    public KeyedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            ScheduledExecutorService pendingScheduler,
+                            Executor executor,
+                            Duration duration, int limit) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, duration, limit);
+    }
+
+    public KeyedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            TaskScheduler pendingScheduler,
+                            Executor executor,
+                            Duration duration, int limit) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, duration, limit);
+    }
+
+    /**
+     * @param pendingTasksCreator creates the storage of a single key's pending tasks, it is called whenever a key starts pending tasks.
+     * @param clock               the source of time, the system clock unless the limiter is simulated.
+     * @param executor            executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     */
+    public KeyedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                            TaskScheduler pendingScheduler,
+                            Clock clock,
+                            Executor executor,
+                            Duration duration, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be strictly positive");
+        }
+        if (!duration.isPositive()) {
+            throw new IllegalArgumentException("duration must be strictly positive");
+        }
+        states = new ConcurrentHashMap<>();
+        stateCreator = KeyState::new;
+        this.pendingTasksCreator = pendingTasksCreator;
+        this.pendingScheduler = pendingScheduler;
+        this.clock = clock;
+        this.executor = executor;
+        isSweepScheduled = new AtomicBoolean(false);
+        currentGeneration = ConcurrentHashMap.newKeySet();
+        previousGeneration = ConcurrentHashMap.newKeySet();
+        durationNanos = Utils.toNanosSaturated(duration);
+        this.limit = limit;
+    }
+
+    @Override
+    public void submitTask(Task task) {
+        while (true) {
+            KeyState state = states.get(task.key());
+            if (state == null) {
+                state = states.computeIfAbsent(task.key(), stateCreator);
+                scheduleSweep();
+            }
+            synchronized (state) {
+                if (!state.evicted) {
+                    state.submitTaskUnsafe(task);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the amount of keys that are currently represented
+     */
+    public int activeKeys() {
+        return states.size();
+    }
+
+    private void scheduleSweep() {
+        if (isSweepScheduled.compareAndSet(false, true)) {
+            try {
+                new DurationForScheduler(durationNanos, TimeUnit.NANOSECONDS).schedule(pendingScheduler, this::sweep);
+            } catch (RuntimeException | Error e) {
+                isSweepScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The keys of the previous generation were last looked at before the previous sweep, at least a duration ago,
+     * so they have no executions within the last duration unless a submission raced with the change of generations.
+     * previousGeneration is only used by the sweep, of which there is one at a time.
+     */
+    private void sweep() {
+        Set<KeyState> idle = previousGeneration;
+        previousGeneration = currentGeneration;
+        currentGeneration = ConcurrentHashMap.newKeySet();
+        long now = clock.nanoTime();
+        for (KeyState state : idle) {
+            synchronized (state) {
+                if (state.generation != idle) {
+                    continue;
+                }
+                state.executed.removeOlderThan(now, durationNanos);
+                if (state.executed.isEmpty() && !state.isScheduled && state.pending == null) {
+                    state.evicted = true;
+                    states.remove(state.key, state);
+                } else {
+                    state.touchUnsafe();
+                }
+            }
+        }
+        isSweepScheduled.set(false);
+        if (!states.isEmpty()) {
+            scheduleSweep();
+        }
+    }
+
+    private final class KeyState {
+        private final Key key;
+        private final NanoTimeRing executed;
+        private Storage<Task> pending;
+        private boolean isScheduled;
+        private boolean evicted;
+        private Set<KeyState> generation;
+
+        private KeyState(Key key) {
+            this.key = key;
+            executed = new NanoTimeRing(Math.min(INITIAL_WINDOW_CAPACITY, limit), limit);
+            pending = null;
+            isScheduled = false;
+            evicted = false;
+            generation = null;
+        }
+
+        /**
+         * Moves the key to the current generation, which is done once per sweep period of the key's activity.
+         * It is called once the expired stamps are removed, so that the window is shrunk by what it actually holds.
+         */
+        private void touchUnsafe() {
+            Set<KeyState> current = currentGeneration;
+            if (generation != current) {
+                if (generation != null) {
+                    generation.remove(this);
+                }
+                current.add(this);
+                generation = current;
+                executed.shrink();
+            }
+        }
+
+        private void submitTaskUnsafe(Task task) {
+            long now = clock.nanoTime();
+            executed.removeOlderThan(now, durationNanos);
+            touchUnsafe();
+            if (!executed.isFull()) {
+                executed.addLast(now);
+                executor.execute(task);
+            } else {
+                if (pending == null) {
+                    pending = pendingTasksCreator.get();
+                }
+                pending.store(task);
+                if (!isScheduled) {
+                    schedulePendingUnsafe();
+                    isScheduled = true;
+                }
+            }
+        }
+
+        private void schedulePendingUnsafe() {
+            long untilNextPending = durationNanos - (clock.nanoTime() - executed.getFirst()) + 1;
+            new DurationForScheduler(untilNextPending, TimeUnit.NANOSECONDS).schedule(pendingScheduler, this::pendingExecutorTask, KeyedRateLimiter.this);
+        }
+
+        /**
+         * isScheduled is cleared unless the drain is rescheduled, also when the executor or the scheduler throws,
+         * so that the next pended task of the key schedules the drain again. Until then the key is not evicted with its pending tasks.
+         */
+        private synchronized void pendingExecutorTask() {
+            boolean rescheduled = false;
+            try {
+                long now = clock.nanoTime();
+                executed.removeOlderThan(now, durationNanos);
+                touchUnsafe();
+                List<Task> nextPending = pending.fetchUpTo(executed.remainingCapacity());
+                executed.addLast(now, nextPending.size());
+                for (Task task : nextPending) {
+                    executor.execute(task);
+                }
+                if (!pending.isEmpty()) {
+                    schedulePendingUnsafe();
+                    rescheduled = true;
+                }
+            } finally {
+                if (!rescheduled) {
+                    isScheduled = false;
+                    if (pending.isEmpty()) {
+                        pending = null;
+                    }
+                }
+            }
+        }
+    }
+}
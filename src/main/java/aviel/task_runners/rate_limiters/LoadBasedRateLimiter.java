@@ -1,86 +1,103 @@
 package aviel.task_runners.rate_limiters;
 
+import aviel.task_runners.Clock;
+import aviel.task_runners.TaskScheduler;
 import aviel.task_runners.pending_tasks.Storage;
 
-import java.time.Duration;
-import java.util.Optional;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
-import static aviel.task_runners.DurationForScheduler.from;
-
 /**
  * A task manager that limits task execution rate based on load as to the following definition of load:
  * Every time duration that is second / loadRate the load is decremented by 1, upon every execution of a task the load is incremented by 1.
  * That is within bounds of 0 to maxLoad, meaning, a load would not be decremented below 0 and no task is executed when the load is at maxLoad.
- * Tasks that are submitted when the load is at maxLoad are pended for future execution and are fetched when load is just below loadRate.
+ * Tasks that are submitted when the load is at maxLoad, or while other tasks are pending, are pended for future execution
+ * and are fetched as soon as the load has decreased enough for them.
+ * The load is not decremented by a periodic task, it is decayed lazily by the time elapsed whenever it is looked at.
+ * The load is the theoretical arrival time of {@link GcraRateLimiter}, so the limiter is one with an emission interval of second / loadRate and a burst of maxLoad.
  * The pending and fetching of tasks at a maxLoad load is managed by PendingTasks that is provided by the pendingTasksCreator provided at construction.
  */
 public class LoadBasedRateLimiter<Task extends Runnable> implements RateLimiter<Task> {
-    private final AtomicInteger load;
-    private final int maxLoad;
-    private final Storage<Task> pending;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final GcraRateLimiter<Task> gcra;
 
     /**
      * @param pendingTasksCreator a creator for the collector of tasks for pending.
-     * @param loadDecrementer     scheduler that is used for load decremental.
+     * @param pendingScheduler    scheduler that is used to fetch pending tasks once the load allows it, it is used only while tasks are pending.
      * @param loadRate            the rate of which the load decreases involuntarily. Units: Hz (times per second)
      * @param maxLoad             the maximal load that is allowed to be reached. Units: Hz (times per second)
      */
     public LoadBasedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
-                                ScheduledExecutorService loadDecrementer,
+                                ScheduledExecutorService pendingScheduler,
                                 int loadRate,
                                 int maxLoad) {
-        this.load = new AtomicInteger(0);
-        this.maxLoad = maxLoad;
-        pending = pendingTasksCreator.get();
-        from(Duration.ofSeconds(1).dividedBy(loadRate)).schedule(loadDecrementer, () -> {
-            Optional<Task> removed = pending.fetch();
-            if (removed.isPresent()) {
-                removed.get().run();
-            } else {
-                decrementLoad();
-            }
-        });
+        this(pendingTasksCreator, pendingScheduler, Runnable::run, loadRate, maxLoad);
     }
 
-    @Override
-    public void submitTask(Task task) {
-        if (incrementLoad()) {
-            task.run();
-        } else {
-            pending.store(task);
-        }
+    /**
+     * @param pendingTasksCreator a creator for the collector of tasks for pending.
+     * @param pendingScheduler    scheduler that is used to fetch pending tasks once the load allows it, it is used only while tasks are pending.
+     * @param executor            executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     * @param loadRate            the rate of which the load decreases involuntarily. Units: Hz (times per second)
+     * @param maxLoad             the maximal load that is allowed to be reached. Units: Hz (times per second)
+     */
+    public LoadBasedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                ScheduledExecutorService pendingScheduler,
+                                Executor executor,
+                                int loadRate,
+                                int maxLoad) {
+        this(pendingTasksCreator, TaskScheduler.of(pendingScheduler), executor, loadRate, maxLoad);
     }
 
     /**
-     * @return true if incrementation succeeded or false if load has reached maximally allowed load value
+     * @param pendingTasksCreator a creator for the collector of tasks for pending.
+     * @param pendingScheduler    scheduler that is used to fetch pending tasks once the load allows it, it is used only while tasks are pending.
+     * @param executor            executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     * @param loadRate            the rate of which the load decreases involuntarily. Units: Hz (times per second)
+     * @param maxLoad             the maximal load that is allowed to be reached. Units: Hz (times per second)
      */
-    private boolean incrementLoad() {
-        int currentLoad;
-        do {
-            currentLoad = load.get();
-            if (currentLoad >= maxLoad) {
-                return false;
-            }
-        }
-        while (!load.compareAndSet(currentLoad, currentLoad + 1));
-        return true;
+    public LoadBasedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                TaskScheduler pendingScheduler,
+                                Executor executor,
+                                int loadRate,
+                                int maxLoad) {
+        this(pendingTasksCreator, pendingScheduler, Clock.system(), executor, loadRate, maxLoad);
     }
 
     /**
-     * @return true if decremental succeeded or false if load has reached minimally allowed load value 0
+     * @param pendingTasksCreator a creator for the collector of tasks for pending.
+     * @param pendingScheduler    scheduler that is used to fetch pending tasks once the load allows it, it is used only while tasks are pending.
+     * @param clock               the source of time, the system clock unless the limiter is simulated.
+     * @param executor            executes the admitted tasks, the limiter itself only decides whether a task is admitted or pended.
+     * @param loadRate            the rate of which the load decreases involuntarily. Units: Hz (times per second)
+     * @param maxLoad             the maximal load that is allowed to be reached. Units: Hz (times per second)
      */
-    private boolean decrementLoad() {
-        int currentLoad;
-        do {
-            currentLoad = load.get();
-            if (currentLoad <= 0) {
-                return false;
-            }
+    public LoadBasedRateLimiter(Supplier<Storage<Task>> pendingTasksCreator,
+                                TaskScheduler pendingScheduler,
+                                Clock clock,
+                                Executor executor,
+                                int loadRate,
+                                int maxLoad) {
+        if (loadRate < 1 || loadRate > SECOND_NANOS) {
+            throw new IllegalArgumentException("loadRate must be between 1 and " + SECOND_NANOS);
         }
-        while (!load.compareAndSet(currentLoad, currentLoad - 1));
-        return true;
+        if (maxLoad < 1) {
+            throw new IllegalArgumentException("maxLoad must be strictly positive");
+        }
+        gcra = new GcraRateLimiter<>(pendingTasksCreator, pendingScheduler, clock, executor, SECOND_NANOS / loadRate, maxLoad);
+    }
+
+    @Override
+    public void submitTask(Task task) {
+        gcra.submitTask(task);
+    }
+
+    @Override
+    public void submitAll(Collection<? extends Task> tasks) {
+        gcra.submitAll(tasks);
     }
 }
@@ -0,0 +1,25 @@
+package aviel.task_runners.rate_limiters;
+
+import java.time.Duration;
+
+/**
+ * A limiter that is asked for permits directly instead of being handed tasks.
+ * Acquiring a permit counts as an execution, it takes the same share of the limit a submitted task would take.
+ */
+public interface PermitLimiter {
+    /**
+     * Acquires all the permits if they are available right now, otherwise acquires nothing.
+     * Permits are not available while tasks submitted to the limiter are pending, so they never get ahead of those tasks.
+     *
+     * @return whether the permits were acquired
+     */
+    boolean tryAcquire(int permits);
+
+    /**
+     * The pending tasks are not accounted for, so while tasks are pending this is only a lower bound,
+     * and {@link #tryAcquire(int)} keeps failing until they are drained.
+     *
+     * @return the time left until the permits would be available, {@link Duration#ZERO} if they are available right now
+     */
+    Duration untilAvailable(int permits);
+}
@@ -1,5 +1,17 @@
 package aviel.task_runners.rate_limiters;
 
+import java.util.Collection;
+
 public interface RateLimiter<Task> {
     void submitTask(Task task);
+
+    /**
+     * Submits all the given tasks in their iteration order.
+     * Implementations may decide on the whole batch at once instead of deciding on each task separately.
+     */
+    default void submitAll(Collection<? extends Task> tasks) {
+        for (Task task : tasks) {
+            submitTask(task);
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package aviel.task_runners.rate_limiters;
+
+/**
+ * The way a submitted task has left the limiter.
+ */
+public enum TaskOutcome {
+    /**
+     * The task was admitted and ran to completion.
+     */
+    EXECUTED,
+    /**
+     * The task was pended and then disposed by the pending storage without ever being executed.
+     */
+    DISPOSED,
+    /**
+     * The task was admitted but the executor refused to execute it,
+     * or it was to be pended but the pending storage refused it, as a full {@code OverflowPolicy.REJECT} storage does.
+     */
+    REJECTED
+}
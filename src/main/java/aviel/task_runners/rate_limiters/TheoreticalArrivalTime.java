@@ -0,0 +1,86 @@
+package aviel.task_runners.rate_limiters;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of the generic cell rate algorithm (GCRA), a single theoretical arrival time that is updated by CAS.
+ * Every permit pushes the theoretical arrival time one emission interval ahead of where it stands, or of now if it is already behind.
+ * Permits are granted only as long as the theoretical arrival time stays no more than burst emission intervals ahead of now.
+ * That is, up to burst permits may be acquired at once, after which permits are replenished one per emission interval.
+ */
+final class TheoreticalArrivalTime {
+    private final AtomicLong theoreticalArrivalTime;
+    private final long emissionIntervalNanos;
+    private final long toleranceNanos;
+    private final int burst;
+
+    TheoreticalArrivalTime(long emissionIntervalNanos, int burst, long now) {
+        if (emissionIntervalNanos < 1) {
+            throw new IllegalArgumentException("emission interval must be at least a nanosecond");
+        }
+        theoreticalArrivalTime = new AtomicLong(now);
+        this.emissionIntervalNanos = emissionIntervalNanos;
+        toleranceNanos = toleranceNanos(emissionIntervalNanos, burst);
+        this.burst = burst;
+    }
+
+    private static long toleranceNanos(long emissionIntervalNanos, int burst) {
+        try {
+            return Math.multiplyExact(emissionIntervalNanos, burst);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    int burst() {
+        return burst;
+    }
+
+    /**
+     * @return the amount of permits acquired, as many as are available right now but no more than wanted
+     */
+    int tryAcquire(long now, int wanted) {
+        while (true) {
+            long current = theoreticalArrivalTime.get();
+            long ahead = Math.max(current - now, 0);
+            int granted = (int) Math.min(wanted, (toleranceNanos - ahead) / emissionIntervalNanos);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (theoreticalArrivalTime.compareAndSet(current, now + ahead + granted * emissionIntervalNanos)) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * @return whether all the permits were acquired, if not then none were acquired
+     */
+    boolean tryAcquireAll(long now, int permits) {
+        while (true) {
+            long current = theoreticalArrivalTime.get();
+            long ahead = Math.max(current - now, 0);
+            if ((toleranceNanos - ahead) / emissionIntervalNanos < permits) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(current, now + ahead + permits * emissionIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back permits that were acquired and not used.
+     */
+    void release(int permits) {
+        theoreticalArrivalTime.addAndGet(-permits * emissionIntervalNanos);
+    }
+
+    /**
+     * @return the nanoseconds left until the permits would be available, 0 if they are available right now
+     */
+    long untilAvailable(long now, int permits) {
+        long ahead = Math.max(theoreticalArrivalTime.get() - now, 0);
+        return Math.max(ahead + permits * emissionIntervalNanos - toleranceNanos, 0);
+    }
+}
@@ -0,0 +1,115 @@
+package aviel.task_runners.simulation;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.Utils;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A discrete-event {@link Clock} and {@link TaskScheduler} for simulating limiters and storages in virtual time.
+ * Time does not advance on its own, it jumps from one scheduled task to the next when the simulation is run,
+ * so hours of a limiter's behavior are simulated at the cost of the tasks alone.
+ * Tasks that are scheduled for the same instant run in the order they were scheduled in.
+ * It is not thread safe, the simulation runs on the thread that runs it,
+ * hence the limiters under simulation are expected to execute their tasks on it as well, e.g. by {@code Runnable::run}.
+ */
+public class VirtualTimeScheduler implements Clock, TaskScheduler {
+    private final PriorityQueue<Event> events;
+    private long now;
+    private long scheduled;
+
+    public VirtualTimeScheduler() {
+        this(0);
+    }
+
+    public VirtualTimeScheduler(long startNanoTime) {
+        events = new PriorityQueue<>();
+        now = startNanoTime;
+        scheduled = 0;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        long delayNanos = Math.max(unit.toNanos(delay), 0);
+        long at = now + Math.min(delayNanos, Long.MAX_VALUE - now);
+        events.add(new Event(at, scheduled++, task));
+    }
+
+    /**
+     * @return the amount of scheduled tasks that have not run yet
+     */
+    public int pendingEvents() {
+        return events.size();
+    }
+
+    /**
+     * Runs every task that is due within duration from now, including tasks they schedule, then advances the time to its end.
+     *
+     * @return the amount of tasks that were run
+     */
+    public int runFor(Duration duration) {
+        if (duration.isNegative()) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        long durationNanos = Utils.toNanosSaturated(duration);
+        return runUntil(now + Math.min(durationNanos, Long.MAX_VALUE - now));
+    }
+
+    /**
+     * Runs every task that is due until the deadline, including tasks they schedule, then advances the time to the deadline.
+     *
+     * @return the amount of tasks that were run
+     */
+    public int runUntil(long deadline) {
+        if (deadline < now) {
+            throw new IllegalArgumentException("deadline must not be before now");
+        }
+        int ran = 0;
+        while (!events.isEmpty() && events.peek().at <= deadline) {
+            runNext();
+            ran++;
+        }
+        now = deadline;
+        return ran;
+    }
+
+    /**
+     * Runs tasks until none is scheduled, the time is left at the last task that was run.
+     *
+     * @return the amount of tasks that were run
+     * @throws IllegalStateException if more than maxEvents tasks would be run, as when a task keeps rescheduling itself.
+     */
+    public int runUntilIdle(int maxEvents) {
+        int ran = 0;
+        while (!events.isEmpty()) {
+            if (ran == maxEvents) {
+                throw new IllegalStateException("still not idle after " + maxEvents + " tasks");
+            }
+            runNext();
+            ran++;
+        }
+        return ran;
+    }
+
+    private void runNext() {
+        Event event = events.remove();
+        now = event.at;
+        event.task.run();
+    }
+
+    private record Event(long at, long sequence, Runnable task) implements Comparable<Event> {
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(at, other.at);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
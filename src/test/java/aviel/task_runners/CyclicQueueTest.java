@@ -88,4 +88,34 @@ public class CyclicQueueTest {
         }
         assert results.equals(List.of(2, 3, 4, 5, 6));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void bulkTest() {
+        CyclicQueue<Integer> queue = new CyclicQueue<>(5);
+        List<Integer> overwritten = new ArrayList<>();
+        queue.putAll(List.of(0, 1, 2, 3, 4, 5, 6), overwritten::add);
+        assert overwritten.equals(List.of(0, 1));
+        List<Integer> drained = new ArrayList<>();
+        assert queue.drainTo(drained, 3) == 3;
+        assert drained.equals(List.of(2, 3, 4));
+        assert queue.drainTo(drained, 10) == 2;
+        assert drained.equals(List.of(2, 3, 4, 5, 6));
+        assert queue.isEmpty();
+        queue.putAll(List.of(7, 8), overwritten::add);
+        assert queue.peek() == 7;
+        assert queue.size() == 2;
+    }
+
+    @Test
+    public void nullReturningTest() {
+        CyclicQueue<Integer> queue = new CyclicQueue<>(2);
+        assert queue.poll() == null;
+        assert queue.peek() == null;
+        assert queue.putOrOverwrite(0) == null;
+        assert queue.putOrOverwrite(1) == null;
+        assert queue.putOrOverwrite(2) == 0;
+        assert queue.poll() == 1;
+        assert queue.poll() == 2;
+        assert queue.poll() == null;
+    }
+}
@@ -0,0 +1,86 @@
+package aviel.task_runners;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class HashedTimingWheelTest {
+    @Test
+    public void expiryOrderTest() throws InterruptedException {
+        try (HashedTimingWheel wheel = new HashedTimingWheel(Duration.ofMillis(1), 8)) {
+            List<Integer> expired = new CopyOnWriteArrayList<>();
+            CountDownLatch done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            wheel.schedule(() -> {
+                expired.add(30);
+                done.countDown();
+            }, 30, TimeUnit.MILLISECONDS);
+            wheel.schedule(() -> {
+                expired.add(2);
+                done.countDown();
+            }, 2, TimeUnit.MILLISECONDS);
+            wheel.schedule(() -> {
+                expired.add(15);
+                done.countDown();
+            }, 15, TimeUnit.MILLISECONDS);
+            assert done.await(5, TimeUnit.SECONDS);
+            assert System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30);
+            assert expired.equals(List.of(2, 15, 30));
+        }
+    }
+
+    @Test
+    public void cancelTest() throws InterruptedException {
+        try (HashedTimingWheel wheel = new HashedTimingWheel(Duration.ofMillis(1), 4)) {
+            CountDownLatch kept = new CountDownLatch(1);
+            CountDownLatch cancelled = new CountDownLatch(1);
+            HashedTimingWheel.Timeout timeout = wheel.newTimeout(cancelled::countDown, 10, TimeUnit.MILLISECONDS);
+            wheel.schedule(kept::countDown, 20, TimeUnit.MILLISECONDS);
+            assert timeout.cancel();
+            assert !timeout.cancel();
+            assert kept.await(5, TimeUnit.SECONDS);
+            assert cancelled.getCount() == 1;
+            assert timeout.isCancelled();
+        }
+    }
+
+    @Test
+    public void stopTest() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(Duration.ofMillis(1), 4);
+        CountDownLatch expired = new CountDownLatch(1);
+        wheel.schedule(expired::countDown, 1, TimeUnit.MILLISECONDS);
+        HashedTimingWheel.Timeout far = wheel.newTimeout(() -> {}, 1, TimeUnit.HOURS);
+        assert expired.await(5, TimeUnit.SECONDS);
+        HashedTimingWheel.Timeout added = wheel.newTimeout(() -> {}, 1, TimeUnit.HOURS);
+        Thread.currentThread().interrupt();
+        List<HashedTimingWheel.Timeout> unexpired = wheel.stop();
+        assert Thread.interrupted();
+        assert unexpired.size() == 2 && unexpired.contains(far) && unexpired.contains(added);
+        assert far.isCancelled();
+        assert wheel.stop().isEmpty();
+        try {
+            wheel.schedule(() -> {}, 1, TimeUnit.MILLISECONDS);
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void stopFromExpiredTaskTest() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(Duration.ofMillis(1), 4);
+        HashedTimingWheel.Timeout far = wheel.newTimeout(() -> {}, 1, TimeUnit.HOURS);
+        List<HashedTimingWheel.Timeout> unexpired = new CopyOnWriteArrayList<>();
+        CountDownLatch stopped = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            unexpired.addAll(wheel.stop());
+            stopped.countDown();
+        }, 1, TimeUnit.MILLISECONDS);
+        assert stopped.await(5, TimeUnit.SECONDS);
+        assert unexpired.equals(List.of(far));
+    }
+}
@@ -0,0 +1,109 @@
+package aviel.task_runners;
+
+import org.junit.Test;
+
+public class NanoTimeRingTest {
+    @Test
+    public void wrapAroundTest() {
+        NanoTimeRing ring = new NanoTimeRing(3);
+        ring.addLast(1);
+        ring.addLast(2);
+        ring.addLast(3);
+        assert ring.isFull();
+        ring.removeFirst();
+        ring.addLast(4);
+        assert ring.isFull();
+        assert ring.getFirst() == 2;
+        ring.removeFirst();
+        ring.removeFirst();
+        assert ring.getFirst() == 4;
+        assert ring.size() == 1;
+    }
+
+    @Test
+    public void removeOlderThanTest() {
+        NanoTimeRing ring = new NanoTimeRing(5);
+        for (int i = 0; i < 5; i++) {
+            ring.addLast(i * 10);
+        }
+        ring.removeOlderThan(30, 10);
+        assert ring.size() == 3;
+        assert ring.getFirst() == 20;
+        ring.removeOlderThan(100, 10);
+        assert ring.isEmpty();
+    }
+
+    @Test
+    public void removeOlderThanOverflowTest() {
+        NanoTimeRing ring = new NanoTimeRing(2);
+        ring.addLast(Long.MAX_VALUE - 5);
+        ring.addLast(Long.MAX_VALUE);
+        ring.removeOlderThan(Long.MIN_VALUE + 3, 5);
+        assert ring.size() == 1;
+        assert ring.getFirst() == Long.MAX_VALUE;
+    }
+
+    @Test
+    public void growthTest() {
+        NanoTimeRing ring = new NanoTimeRing(2, 7);
+        ring.addLast(1);
+        ring.addLast(2);
+        ring.removeFirst();
+        ring.addLast(3);
+        ring.addLast(4, 3);
+        assert ring.size() == 5;
+        assert ring.getFirst() == 2;
+        assert ring.get(1) == 3;
+        assert ring.get(4) == 4;
+        ring.addLast(5, 2);
+        assert ring.isFull();
+        assert ring.get(6) == 5;
+    }
+
+    @Test
+    public void addLastTimesTest() {
+        NanoTimeRing ring = new NanoTimeRing(4);
+        ring.addLast(1, 3);
+        ring.removeFirst();
+        ring.removeFirst();
+        // wraps around the end of the array
+        ring.addLast(2, 2);
+        ring.addLast(3, 0);
+        assert ring.size() == 3;
+        assert ring.get(0) == 1;
+        assert ring.get(2) == 2;
+        try {
+            ring.addLast(4, 2);
+            assert false;
+        } catch (IllegalStateException expected) {
+        }
+        assert ring.size() == 3;
+        ring.addLast(4, 1);
+        assert ring.isFull();
+        assert ring.get(3) == 4;
+    }
+
+    @Test
+    public void shrinkTest() {
+        NanoTimeRing ring = new NanoTimeRing(2, 16);
+        ring.addLast(0, 16);
+        for (int i = 0; i < 11; i++) {
+            ring.removeFirst();
+        }
+        // more than a quarter of the array is in use, so it is kept
+        ring.shrink();
+        ring.addLast(1);
+        for (int i = 0; i < 4; i++) {
+            ring.removeFirst();
+        }
+        // the 2 remaining stamps wrap around the end of the array
+        ring.shrink();
+        assert ring.size() == 2;
+        assert ring.getFirst() == 0;
+        assert ring.get(1) == 1;
+        ring.addLast(2, 14);
+        assert ring.isFull();
+        assert ring.get(1) == 1;
+        assert ring.get(15) == 2;
+    }
+}
@@ -0,0 +1,108 @@
+package aviel.task_runners;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SequencedCyclicQueueTest {
+    @Test
+    public void overwriteOldestTest() {
+        for (SequencedCyclicQueue<Integer> queue : List.of(new MpscCyclicQueue<Integer>(3), new SpscCyclicQueue<Integer>(3))) {
+            List<Integer> evicted = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                queue.put(i, evicted::add);
+            }
+            assert evicted.equals(List.of(0, 1));
+            assert queue.size() == 3;
+            assert !queue.offer(5);
+            assert queue.poll() == 2;
+            assert queue.offer(5);
+            assert queue.poll() == 3;
+            assert queue.poll() == 4;
+            assert queue.poll() == 5;
+            assert queue.poll() == null;
+            assert queue.isEmpty();
+        }
+    }
+
+    @Test
+    public void singleElementTest() {
+        for (SequencedCyclicQueue<String> queue : List.of(new MpscCyclicQueue<String>(1), new SpscCyclicQueue<String>(1))) {
+            assert queue.offer("a");
+            assert !queue.offer("b");
+            assert queue.size() == 1;
+            assert queue.poll().equals("a");
+            assert queue.poll() == null;
+            List<String> evicted = new ArrayList<>();
+            queue.put("b", evicted::add);
+            queue.put("c", evicted::add);
+            queue.put("d", evicted::add);
+            assert evicted.equals(List.of("b", "c"));
+            assert queue.poll().equals("d");
+            assert queue.isEmpty();
+        }
+    }
+
+    @Test
+    public void mpscTest() {
+        every(new MpscCyclicQueue<>(16), Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void spscTest() {
+        every(new SpscCyclicQueue<>(16), 1);
+    }
+
+    @Test
+    public void singleElementMpscTest() {
+        every(new MpscCyclicQueue<>(1), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Every put element is either polled or evicted exactly once, and the elements of each producer are polled in their order.
+     */
+    private static void every(SequencedCyclicQueue<Integer> queue, int producers) {
+        int perProducer = 200_000;
+        AtomicLongArray seen = new AtomicLongArray(producers * perProducer);
+        AtomicInteger finished = new AtomicInteger(0);
+        AtomicBoolean outOfOrder = new AtomicBoolean(false);
+        try (ExecutorService executor = Executors.newFixedThreadPool(producers + 1)) {
+            for (int i = 0; i < producers; i++) {
+                int producer = i;
+                executor.execute(() -> {
+                    for (int j = 0; j < perProducer; j++) {
+                        queue.put(producer * perProducer + j, evicted -> seen.incrementAndGet(evicted));
+                    }
+                    finished.incrementAndGet();
+                });
+            }
+            executor.execute(() -> {
+                int[] lastPolled = new int[producers];
+                Arrays.fill(lastPolled, -1);
+                while (finished.get() < producers || !queue.isEmpty()) {
+                    Integer polled = queue.poll();
+                    if (polled == null) {
+                        continue;
+                    }
+                    seen.incrementAndGet(polled);
+                    int producer = polled / perProducer;
+                    if (polled % perProducer <= lastPolled[producer]) {
+                        outOfOrder.set(true);
+                    }
+                    lastPolled[producer] = polled % perProducer;
+                }
+            });
+        }
+        assert !outOfOrder.get();
+        for (int i = 0; i < seen.length(); i++) {
+            assert seen.get(i) == 1 : "element " + i + " was seen " + seen.get(i) + " times";
+        }
+    }
+}
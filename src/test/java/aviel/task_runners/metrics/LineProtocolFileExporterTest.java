@@ -0,0 +1,112 @@
+package aviel.task_runners.metrics;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.pending_tasks.Storage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class LineProtocolFileExporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void exportTest() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        Storage<KeyedTask<String>> storage = metrics.<KeyedTask<String>>storage(QueueStorage::new).get();
+        storage.store(KeyedTask.of("a b", () -> {}));
+        try (LineProtocolFileExporter exporter = new LineProtocolFileExporter(directory, "test", 1 << 12, 4)) {
+            exporter.register("limiter", Map.of("limit", "10"), metrics);
+            exporter.export();
+        }
+        List<String> lines = Files.readAllLines(directory.resolve("test-0.lp"));
+        assert lines.size() == 2;
+        assert lines.get(0).startsWith("limiter,limit=10 submitted=0i,executed=0i,pended=1i,");
+        assert lines.get(1).startsWith("limiter_keys,limit=10,key=a\\ b stored=1i ");
+    }
+
+    @Test
+    public void rotationTest() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (LineProtocolFileExporter exporter = new LineProtocolFileExporter(directory, "test", 1 << 10, 2)) {
+            exporter.register("limiter", Map.of(), new RateLimiterMetrics());
+            for (int i = 0; i < 20; i++) {
+                exporter.export();
+            }
+        }
+        List<Path> segments = segments(directory);
+        assert segments.size() == 2;
+        for (Path segment : segments) {
+            for (String line : Files.readAllLines(segment)) {
+                assert line.isEmpty() || line.startsWith("limiter submitted=0i,");
+            }
+        }
+        new LineProtocolFileExporter(directory, "test", 1 << 10, 2).close();
+        List<Path> reopened = segments(directory);
+        assert reopened.size() == 3;
+        assert reopened.containsAll(segments);
+    }
+
+    /**
+     * A segment left full length by a crash is trimmed after its last complete line, dropping the NUL tail and the cut line.
+     */
+    @Test
+    public void recoveryTest() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[] crashed = new byte[1 << 14];
+        byte[] written = "limiter submitted=0i 1\nlimiter submi".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(written, 0, crashed, 0, written.length);
+        Files.write(directory.resolve("test-0.lp"), crashed);
+        Files.write(directory.resolve("test-1.lp"), "limiter submi".getBytes(StandardCharsets.UTF_8));
+        Files.writeString(directory.resolve("test-2.lp"), "limiter submitted=0i 2\n");
+        new LineProtocolFileExporter(directory, "test", 1 << 10, 8).close();
+        assert Files.readString(directory.resolve("test-0.lp")).equals("limiter submitted=0i 1\n");
+        assert Files.size(directory.resolve("test-1.lp")) == 0;
+        assert Files.readString(directory.resolve("test-2.lp")).equals("limiter submitted=0i 2\n");
+        assert Files.size(directory.resolve("test-3.lp")) == 0;
+    }
+
+    @Test
+    public void emptyTagTest() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        Storage<KeyedTask<String>> storage = metrics.<KeyedTask<String>>storage(QueueStorage::new).get();
+        storage.store(KeyedTask.of("", () -> {}));
+        try (LineProtocolFileExporter exporter = new LineProtocolFileExporter(directory, "test", 1 << 12, 4)) {
+            for (Map<String, String> tags : List.of(Map.of("limit", ""), Map.of("", "10"))) {
+                try {
+                    exporter.register("limiter", tags, metrics);
+                    assert false : tags;
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+            try {
+                exporter.register("", Map.of(), metrics);
+                assert false;
+            } catch (IllegalArgumentException expected) {
+            }
+            exporter.register("limiter", Map.of("limit", "10"), metrics);
+            exporter.export();
+        }
+        List<String> lines = Files.readAllLines(directory.resolve("test-0.lp"));
+        assert lines.size() == 2;
+        // the empty key has no key tag rather than an empty one
+        assert lines.get(1).startsWith("limiter_keys,limit=10 stored=1i ") : lines.get(1);
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+}
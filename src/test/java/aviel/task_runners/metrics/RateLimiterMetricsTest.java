@@ -0,0 +1,146 @@
+package aviel.task_runners.metrics;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.BoundedQueueStorage;
+import aviel.task_runners.pending_tasks.OverflowPolicy;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.pending_tasks.RandomStorage;
+import aviel.task_runners.pending_tasks.Storage;
+import aviel.task_runners.rate_limiters.ExactRateLimiter;
+import aviel.task_runners.rate_limiters.RateLimiter;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterMetricsTest {
+    @Test
+    public void bucketBoundsTest() {
+        for (long value : new long[]{0, 1, 3, 4, 7, 8, 9, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assert LatencyHistogram.lowerBoundOf(bucket) <= value;
+            assert value <= LatencyHistogram.upperBoundOf(bucket);
+            assert bucket < LatencyHistogram.BUCKETS;
+        }
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            assert LatencyHistogram.lowerBoundOf(bucket) == LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+        }
+    }
+
+    @Test
+    public void quantileTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assert snapshot.count() == 100;
+        assert snapshot.mean() == 50_500;
+        long median = snapshot.quantile(0.5);
+        assert median >= 50_000 && median <= 50_000 * 5 / 4;
+        assert snapshot.quantile(1) >= 100_000;
+    }
+
+    @Test
+    public void limiterTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        RateLimiterMetrics metrics = new RateLimiterMetrics(scheduler);
+        RateLimiter<KeyedTask<String>> limiter =
+                metrics.limiter(new ExactRateLimiter<>(metrics.storage(QueueStorage::new),
+                                                       scheduler, scheduler, metrics.executor(Runnable::run),
+                                                       Duration.ofSeconds(1), 2));
+        for (int i = 0; i < 6; i++) {
+            limiter.submitTask(KeyedTask.of(i % 2 == 0 ? "even" : "odd", () -> {}));
+        }
+        RateLimiterMetrics.Snapshot pending = metrics.snapshot();
+        assert pending.submitted() == 6;
+        assert pending.executed() == 2;
+        assert pending.stored() == 4;
+        assert pending.occupancyByKey().equals(Map.of("even", 2L, "odd", 2L));
+        scheduler.runUntilIdle(100);
+        RateLimiterMetrics.Snapshot drained = metrics.snapshot();
+        assert drained.executed() == 6;
+        assert drained.fetched() == 4;
+        assert drained.occupancyByKey().isEmpty();
+        assert drained.pendToRun().quantile(1) >= TimeUnit.SECONDS.toNanos(1);
+        assert drained.interExecution().count() == 5;
+    }
+
+    @Test
+    public void disposalTest() {
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        Storage<KeyedTask<Integer>> storage = metrics.<KeyedTask<Integer>>storage(() -> new RandomStorage<>(new Random(0), 3, __ -> {})).get();
+        for (int i = 0; i < 5; i++) {
+            storage.store(KeyedTask.of(i, () -> {}));
+        }
+        RateLimiterMetrics.Snapshot snapshot = metrics.snapshot();
+        assert snapshot.pended() == 5;
+        assert snapshot.disposed() == 2;
+        assert snapshot.occupancyByKey().size() == 3;
+    }
+
+    /**
+     * A task the storage rejects is not counted as pended, neither when stored alone nor within a batch.
+     */
+    @Test
+    public void rejectionTest() {
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        Storage<KeyedTask<String>> storage = metrics.<KeyedTask<String>>storage(() -> new BoundedQueueStorage<>(2, OverflowPolicy.REJECT)).get();
+        storage.store(KeyedTask.of("a", () -> {}));
+        try {
+            storage.storeAll(List.of(KeyedTask.of("a", () -> {}), KeyedTask.of("b", () -> {})));
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+        try {
+            storage.store(KeyedTask.of("c", () -> {}));
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+        assert storage.fetchUpTo(10).size() == 2;
+        RateLimiterMetrics.Snapshot snapshot = metrics.snapshot();
+        assert snapshot.pended() == 2;
+        assert snapshot.fetched() == 2;
+        assert snapshot.stored() == 0;
+        assert snapshot.occupancyByKey().isEmpty() : snapshot.occupancyByKey();
+        assert snapshot.pendToRun().count() == 2;
+    }
+
+    /**
+     * Tasks a storage hands back as other instances are counted, but their unknown time in the storage is not recorded.
+     */
+    @Test
+    public void otherInstancesTest() {
+        RateLimiterMetrics metrics = new RateLimiterMetrics();
+        Storage<KeyedTask<String>> storage = metrics.<KeyedTask<String>>storage(() -> new Storage<>() {
+            private final QueueStorage<KeyedTask<String>> queue = new QueueStorage<>();
+
+            @Override
+            public void store(KeyedTask<String> task) {
+                queue.store(task);
+            }
+
+            @Override
+            public Optional<KeyedTask<String>> fetch() {
+                return queue.fetch().map(task -> KeyedTask.of(task.key(), task));
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return queue.isEmpty();
+            }
+        }).get();
+        storage.storeAll(List.of(KeyedTask.of("a", () -> {}), KeyedTask.of("b", () -> {})));
+        assert storage.fetchUpTo(10).size() == 2;
+        RateLimiterMetrics.Snapshot snapshot = metrics.snapshot();
+        assert snapshot.fetched() == 2;
+        assert snapshot.occupancyByKey().isEmpty();
+        assert snapshot.pendToRun().count() == 0;
+    }
+}
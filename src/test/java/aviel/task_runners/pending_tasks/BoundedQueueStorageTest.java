@@ -0,0 +1,58 @@
+package aviel.task_runners.pending_tasks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+public class BoundedQueueStorageTest {
+    @Test
+    public void overflowPoliciesTest() {
+        List<Integer> disposed = new ArrayList<>();
+        BoundedQueueStorage<Integer> dropNewest = new BoundedQueueStorage<>(3, OverflowPolicy.DROP_NEWEST, disposed::add);
+        dropNewest.storeAll(List.of(1, 2, 3, 4, 5));
+        assert disposed.equals(List.of(4, 5));
+        assert dropNewest.fetchUpTo(10).equals(List.of(1, 2, 3));
+
+        disposed.clear();
+        BoundedQueueStorage<Integer> dropOldest = new BoundedQueueStorage<>(3, OverflowPolicy.DROP_OLDEST, disposed::add);
+        dropOldest.storeAll(List.of(1, 2, 3, 4, 5));
+        assert disposed.equals(List.of(1, 2));
+        assert dropOldest.size() == 3;
+        assert dropOldest.fetchUpTo(10).equals(List.of(3, 4, 5));
+
+        BoundedQueueStorage<Integer> reject = new BoundedQueueStorage<>(3, OverflowPolicy.REJECT);
+        reject.storeAll(List.of(1, 2, 3));
+        try {
+            reject.store(4);
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+        assert reject.fetchUpTo(10).equals(List.of(1, 2, 3));
+    }
+
+    @Test
+    public void singleTaskTest() {
+        List<Integer> disposed = new ArrayList<>();
+        BoundedQueueStorage<Integer> dropNewest = new BoundedQueueStorage<>(1, OverflowPolicy.DROP_NEWEST, disposed::add);
+        dropNewest.storeAll(List.of(1, 2));
+        assert disposed.equals(List.of(2));
+        assert dropNewest.fetchUpTo(10).equals(List.of(1));
+
+        disposed.clear();
+        BoundedQueueStorage<Integer> dropOldest = new BoundedQueueStorage<>(1, OverflowPolicy.DROP_OLDEST, disposed::add);
+        dropOldest.storeAll(List.of(1, 2, 3));
+        assert disposed.equals(List.of(1, 2));
+        assert dropOldest.fetchUpTo(10).equals(List.of(3));
+        assert dropOldest.isEmpty();
+    }
+
+    @Test
+    public void fetchOfEmptyStorageTest() {
+        BoundedQueueStorage<Integer> bounded = new BoundedQueueStorage<>(3, OverflowPolicy.REJECT);
+        assert bounded.isEmpty();
+        assert bounded.fetch().isEmpty();
+        assert new QueueStorage<Integer>().fetch().isEmpty();
+    }
+}
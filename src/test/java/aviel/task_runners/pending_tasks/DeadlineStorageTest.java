@@ -0,0 +1,46 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.DeadlinedTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class DeadlineStorageTest {
+    @Test
+    public void earliestDeadlineFirstTest() {
+        long[] now = {0};
+        DeadlineStorage<Integer, DeadlinedTask<Integer>> storage = new DeadlineStorage<>(() -> now[0], __ -> {});
+        Random random = new Random(3);
+        List<DeadlinedTask<Integer>> stored = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            DeadlinedTask<Integer> task = DeadlinedTask.of(i, random.nextInt(100), () -> {});
+            stored.add(task);
+            storage.store(task);
+        }
+        // a stable sort keeps the tasks of equal deadlines in the order they were stored in
+        stored.sort(Comparator.comparingLong(DeadlinedTask::deadline));
+        assert storage.fetchUpTo(Integer.MAX_VALUE).equals(stored);
+        assert storage.isEmpty();
+    }
+
+    @Test
+    public void expiredTasksAreDisposedTest() {
+        long[] now = {Long.MAX_VALUE - 10};
+        List<DeadlinedTask<String>> disposed = new ArrayList<>();
+        DeadlineStorage<String, DeadlinedTask<String>> storage = new DeadlineStorage<>(() -> now[0], disposed::add);
+        DeadlinedTask<String> soon = DeadlinedTask.of("soon", now[0] + 5, () -> {});
+        DeadlinedTask<String> later = DeadlinedTask.of("later", now[0] + 20, () -> {});
+        DeadlinedTask<String> latest = DeadlinedTask.of("latest", now[0] + 30, () -> {});
+        storage.storeAll(List.of(latest, soon, later));
+        now[0] += 10;
+        // the deadlines of later and latest overflowed, they are still after the clock
+        assert storage.fetch().orElseThrow() == later;
+        assert disposed.equals(List.of(soon));
+        now[0] += 25;
+        assert storage.fetch().isEmpty();
+        assert disposed.equals(List.of(soon, latest));
+    }
+}
@@ -0,0 +1,96 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+public class DeficitRoundRobinStorageTest {
+    @Test
+    public void weightedRoundsTest() {
+        Map<String, Integer> weights = Map.of("a", 3, "b", 1, "c", 2);
+        DeficitRoundRobinStorage<String, KeyedTask<String>> storage =
+                new DeficitRoundRobinStorage<>(weights::get, 1000, OverflowPolicy.REJECT, __ -> {});
+        for (int i = 0; i < 100; i++) {
+            storage.store(KeyedTask.of("a", () -> {}));
+            storage.store(KeyedTask.of("b", () -> {}));
+        }
+        for (int i = 0; i < 3; i++) {
+            storage.store(KeyedTask.of("c", () -> {}));
+        }
+        StringBuilder keys = new StringBuilder();
+        for (KeyedTask<String> task : storage.fetchUpTo(16)) {
+            keys.append(task.key());
+        }
+        // c has only 3 tasks, once they are fetched a and b are left to share the rounds
+        assert keys.toString().equals("aaabccaaabcaaaba");
+    }
+
+    @Test
+    public void overflowPoliciesTest() {
+        List<KeyedTask<Integer>> disposed = new ArrayList<>();
+        List<KeyedTask<Integer>> stored = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            stored.add(KeyedTask.of(i % 2, () -> {}));
+        }
+        DeficitRoundRobinStorage<Integer, KeyedTask<Integer>> dropOldest =
+                new DeficitRoundRobinStorage<>(__ -> 1, 3, OverflowPolicy.DROP_OLDEST, disposed::add);
+        dropOldest.storeAll(stored);
+        assert disposed.equals(stored.subList(0, 2));
+        assert dropOldest.fetchUpTo(10).equals(List.of(stored.get(2), stored.get(3), stored.get(4)));
+
+        disposed.clear();
+        DeficitRoundRobinStorage<Integer, KeyedTask<Integer>> dropNewest =
+                new DeficitRoundRobinStorage<>(__ -> 1, 3, OverflowPolicy.DROP_NEWEST, disposed::add);
+        dropNewest.storeAll(stored);
+        assert disposed.equals(stored.subList(3, 5));
+        assert dropNewest.fetchUpTo(10).equals(List.of(stored.get(0), stored.get(1), stored.get(2)));
+
+        DeficitRoundRobinStorage<Integer, KeyedTask<Integer>> reject =
+                new DeficitRoundRobinStorage<>(__ -> 1, 3, OverflowPolicy.REJECT, __ -> {});
+        try {
+            reject.storeAll(stored);
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+        assert reject.fetchUpTo(10).size() == 3;
+        assert reject.isEmpty();
+    }
+
+    /**
+     * An invalid weight of a joining key is thrown before the oldest task is dropped to make room for it.
+     */
+    @Test
+    public void invalidWeightTest() {
+        List<KeyedTask<String>> disposed = new ArrayList<>();
+        DeficitRoundRobinStorage<String, KeyedTask<String>> storage =
+                new DeficitRoundRobinStorage<>(key -> key.equals("bad") ? 0 : 1, 2, OverflowPolicy.DROP_OLDEST, disposed::add);
+        KeyedTask<String> a = KeyedTask.of("a", () -> {});
+        KeyedTask<String> b = KeyedTask.of("b", () -> {});
+        storage.storeAll(List.of(a, b));
+        try {
+            storage.store(KeyedTask.of("bad", () -> {}));
+            assert false;
+        } catch (IllegalArgumentException expected) {
+        }
+        assert disposed.isEmpty();
+        assert storage.fetchUpTo(10).equals(List.of(a, b));
+
+        // a key whose only task is dropped to make room for its next task joins again, and is asked its weight again
+        int[] asked = {0};
+        DeficitRoundRobinStorage<String, KeyedTask<String>> single =
+                new DeficitRoundRobinStorage<>(__ -> asked[0]++ == 0 ? 1 : 0, 1, OverflowPolicy.DROP_OLDEST, disposed::add);
+        single.store(a);
+        try {
+            single.store(KeyedTask.of("a", () -> {}));
+            assert false;
+        } catch (IllegalArgumentException expected) {
+        }
+        assert asked[0] == 2;
+        assert disposed.isEmpty();
+        assert single.fetch().orElseThrow() == a;
+    }
+}
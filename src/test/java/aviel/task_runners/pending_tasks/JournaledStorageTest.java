@@ -0,0 +1,130 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+public class JournaledStorageTest {
+    private static final TaskCodec<KeyedTask<Integer>> CODEC = new TaskCodec<>() {
+        @Override
+        public byte[] encode(KeyedTask<Integer> task) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(task.key()).array();
+        }
+
+        @Override
+        public KeyedTask<Integer> decode(byte[] bytes) {
+            return KeyedTask.of(ByteBuffer.wrap(bytes).getInt(), () -> {});
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoveryTest() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("pending.journal");
+        try (JournaledStorage<KeyedTask<Integer>> storage =
+                     new JournaledStorage<>(new BoundedQueueStorage<>(4, OverflowPolicy.DROP_OLDEST), journal, CODEC, 1)) {
+            for (int i = 0; i < 6; i++) {
+                storage.store(KeyedTask.of(i, () -> {}));
+            }
+            // 0 and 1 were disposed to make room
+            assert storage.fetch().orElseThrow().key() == 2;
+        }
+        try (JournaledStorage<KeyedTask<Integer>> storage =
+                     new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0)) {
+            assert keys(storage.fetchUpTo(10)).equals(List.of(3, 4, 5));
+            storage.store(KeyedTask.of(6, () -> {}));
+            storage.sync();
+        }
+        try (JournaledStorage<KeyedTask<Integer>> storage =
+                     new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0)) {
+            assert keys(storage.fetchUpTo(10)).equals(List.of(6));
+        }
+    }
+
+    @Test
+    public void tornTailTest() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("pending.journal");
+        JournaledStorage<KeyedTask<Integer>> crashed = new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0);
+        crashed.storeAll(List.of(KeyedTask.of(0, () -> {}), KeyedTask.of(1, () -> {})));
+        crashed.sync();
+        crashed.store(KeyedTask.of(2, () -> {}));
+        crashed.sync();
+        // a record whose writing was cut by a crash, its length claims more bytes than follow it
+        Files.write(journal, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        try (JournaledStorage<KeyedTask<Integer>> storage =
+                     new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0)) {
+            assert keys(storage.fetchUpTo(10)).equals(List.of(0, 1, 2));
+        }
+        crashed.close();
+    }
+
+    @Test
+    public void interruptedWriterTest() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("pending.journal");
+        try (JournaledStorage<KeyedTask<Integer>> storage = new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 1)) {
+            Thread.currentThread().interrupt();
+            try {
+                storage.store(KeyedTask.of(0, () -> {}));
+                storage.sync();
+            } finally {
+                assert Thread.interrupted();
+            }
+            storage.store(KeyedTask.of(1, () -> {}));
+        }
+        try (JournaledStorage<KeyedTask<Integer>> storage = new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 1)) {
+            assert keys(storage.fetchUpTo(10)).equals(List.of(0, 1));
+        }
+    }
+
+    @Test
+    public void closedJournalTest() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("pending.journal");
+        QueueStorage<KeyedTask<Integer>> queue = new QueueStorage<>();
+        JournaledStorage<KeyedTask<Integer>> storage = new JournaledStorage<>(queue, journal, CODEC, 0);
+        storage.store(KeyedTask.of(0, () -> {}));
+        storage.close();
+        try {
+            storage.fetch();
+            assert false;
+        } catch (IllegalStateException expected) {
+        }
+        assert !queue.isEmpty();
+        try (JournaledStorage<KeyedTask<Integer>> reopened = new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0)) {
+            assert keys(reopened.fetchUpTo(10)).equals(List.of(0));
+        }
+    }
+
+    /**
+     * The tasks a spilling storage decodes are other instances than those that were stored, and their fetches are journaled all the same.
+     */
+    @Test
+    public void decodedInstancesTest() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("pending.journal");
+        Path spill = folder.getRoot().toPath().resolve("spill");
+        try (SpillingStorage<KeyedTask<Integer>> spilling = new SpillingStorage<>(spill, "test", CODEC, 2, 256);
+             JournaledStorage<KeyedTask<Integer>> storage = new JournaledStorage<>(spilling, journal, CODEC, 1)) {
+            for (int i = 0; i < 6; i++) {
+                storage.store(KeyedTask.of(i % 3, () -> {}));
+            }
+            assert keys(storage.fetchUpTo(5)).equals(List.of(0, 1, 2, 0, 1));
+        }
+        try (JournaledStorage<KeyedTask<Integer>> storage =
+                     new JournaledStorage<>(new QueueStorage<>(), journal, CODEC, 0)) {
+            assert keys(storage.fetchUpTo(10)).equals(List.of(2));
+        }
+    }
+
+    private static List<Integer> keys(List<KeyedTask<Integer>> tasks) {
+        return tasks.stream().map(KeyedTask::key).toList();
+    }
+}
@@ -0,0 +1,120 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Test;
+
+import java.util.*;
+
+public class KeyedSwapperByOldestStorageTest {
+    @Test
+    public void policyTest() {
+        List<KeyedTask<String>> disposed = new ArrayList<>();
+        KeyedSwapperByOldestStorage<String, KeyedTask<String>> storage = new KeyedSwapperByOldestStorage<>(2, 2);
+        storage.addDisposalListener(disposed::add);
+        KeyedTask<String> a1 = KeyedTask.of("a", () -> {});
+        KeyedTask<String> b1 = KeyedTask.of("b", () -> {});
+        KeyedTask<String> a2 = KeyedTask.of("a", () -> {});
+        KeyedTask<String> a3 = KeyedTask.of("a", () -> {});
+        KeyedTask<String> c1 = KeyedTask.of("c", () -> {});
+        storage.store(a1);
+        storage.store(b1);
+        storage.store(a2);
+        storage.store(a3);
+        assert disposed.equals(List.of(a1));
+        // a2 is now the oldest entry of a, which is newer than b1, so a is swapped
+        storage.store(c1);
+        assert disposed.equals(List.of(a1, a2, a3));
+        assert storage.fetchUpTo(10).equals(List.of(c1, b1));
+        assert storage.isEmpty();
+    }
+
+    @Test
+    public void singleEntryQueuesTest() {
+        List<KeyedTask<String>> disposed = new ArrayList<>();
+        KeyedSwapperByOldestStorage<String, KeyedTask<String>> storage = new KeyedSwapperByOldestStorage<>(2, 1);
+        storage.addDisposalListener(disposed::add);
+        KeyedTask<String> a1 = KeyedTask.of("a", () -> {});
+        KeyedTask<String> a2 = KeyedTask.of("a", () -> {});
+        KeyedTask<String> b1 = KeyedTask.of("b", () -> {});
+        KeyedTask<String> c1 = KeyedTask.of("c", () -> {});
+        storage.store(a1);
+        storage.store(a2);
+        storage.store(b1);
+        storage.store(c1);
+        assert disposed.equals(List.of(a1, b1));
+        assert storage.fetchUpTo(10).equals(List.of(c1, a2));
+        assert storage.isEmpty();
+    }
+
+    /**
+     * Compares the storage with a plain model of its policy, which orders the keys by scanning their oldest entries.
+     */
+    @Test
+    public void matchesModelTest() {
+        Random random = new Random(7);
+        int queuesCountMax = 5;
+        int queueSizeMax = 3;
+        List<KeyedTask<Integer>> disposed = new ArrayList<>();
+        List<KeyedTask<Integer>> modelDisposed = new ArrayList<>();
+        KeyedSwapperByOldestStorage<Integer, KeyedTask<Integer>> storage = new KeyedSwapperByOldestStorage<>(queuesCountMax, queueSizeMax);
+        storage.addDisposalListener(disposed::add);
+        Map<Integer, ArrayDeque<KeyedTask<Integer>>> modelQueues = new HashMap<>();
+        Map<KeyedTask<Integer>, Integer> sequences = new IdentityHashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            if (random.nextInt(3) > 0) {
+                KeyedTask<Integer> task = KeyedTask.of(random.nextInt(9), () -> {});
+                sequences.put(task, i);
+                storage.store(task);
+                ArrayDeque<KeyedTask<Integer>> queue = modelQueues.get(task.key());
+                if (queue == null) {
+                    if (modelQueues.size() == queuesCountMax) {
+                        modelDisposed.addAll(modelQueues.remove(lastKey(modelQueues, sequences)));
+                    }
+                    queue = new ArrayDeque<>();
+                    modelQueues.put(task.key(), queue);
+                } else if (queue.size() == queueSizeMax) {
+                    modelDisposed.add(queue.poll());
+                }
+                queue.add(task);
+            } else {
+                Optional<KeyedTask<Integer>> fetched = storage.fetch();
+                if (modelQueues.isEmpty()) {
+                    assert fetched.isEmpty();
+                } else {
+                    Integer key = lastKey(modelQueues, sequences);
+                    ArrayDeque<KeyedTask<Integer>> queue = modelQueues.get(key);
+                    assert fetched.orElseThrow() == queue.poll();
+                    if (queue.isEmpty()) {
+                        modelQueues.remove(key);
+                    }
+                }
+            }
+            assert disposed.equals(modelDisposed);
+        }
+    }
+
+    private static Integer lastKey(Map<Integer, ArrayDeque<KeyedTask<Integer>>> queues, Map<KeyedTask<Integer>, Integer> sequences) {
+        return Collections.max(queues.keySet(), Comparator.comparing(key -> sequences.get(queues.get(key).peek())));
+    }
+
+    @Test
+    public void drainedAndSwappedKeysAreReclaimedTest() {
+        List<KeyedTask<Integer>> disposed = new ArrayList<>();
+        KeyedSwapperByOldestStorage<Integer, KeyedTask<Integer>> storage = new KeyedSwapperByOldestStorage<>(4, 3);
+        storage.addDisposalListener(disposed::add);
+        int stored = 0;
+        int fetched = 0;
+        for (int key = 0; key < 100_000; key++) {
+            for (int i = 0; i < key % 5; i++) {
+                storage.store(KeyedTask.of(key, () -> {}));
+                stored++;
+            }
+            if (key % 7 == 0) {
+                fetched += storage.fetchUpTo(key % 11).size();
+            }
+        }
+        fetched += storage.fetchUpTo(Integer.MAX_VALUE).size();
+        assert storage.isEmpty();
+        assert stored == fetched + disposed.size();
+    }
+}
@@ -0,0 +1,20 @@
+package aviel.task_runners.pending_tasks;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class QueueStorageTest {
+    @Test
+    public void bulkTest() {
+        QueueStorage<Integer> storage = new QueueStorage<>();
+        storage.store(0);
+        storage.storeAll(List.of(1, 2, 3, 4));
+        assert storage.fetchUpTo(0).isEmpty();
+        assert storage.fetchUpTo(2).equals(List.of(0, 1));
+        assert storage.fetch().orElseThrow() == 2;
+        assert storage.fetchUpTo(10).equals(List.of(3, 4));
+        assert storage.isEmpty();
+        assert storage.fetchUpTo(10).isEmpty();
+    }
+}
@@ -0,0 +1,106 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+public class RandomStorageTest {
+    @Test
+    public void orderWithinKeyTest() {
+        RandomStorage<String, KeyedTask<String>> storage = new RandomStorage<>(new Random(0), 10, __ -> {});
+        List<KeyedTask<String>> stored = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            KeyedTask<String> task = KeyedTask.of(i % 2 == 0 ? "even" : "odd", () -> {});
+            stored.add(task);
+            storage.store(task);
+        }
+        List<KeyedTask<String>> evens = new ArrayList<>();
+        List<KeyedTask<String>> odds = new ArrayList<>();
+        for (Optional<KeyedTask<String>> task = storage.fetch(); task.isPresent(); task = storage.fetch()) {
+            (task.get().key().equals("even") ? evens : odds).add(task.get());
+        }
+        assert evens.equals(List.of(stored.get(0), stored.get(2), stored.get(4)));
+        assert odds.equals(List.of(stored.get(1), stored.get(3), stored.get(5)));
+        assert storage.isEmpty();
+    }
+
+    @Test
+    public void bulkTest() {
+        RandomStorage<String, KeyedTask<String>> storage = new RandomStorage<>(new Random(0), 10, __ -> {});
+        List<KeyedTask<String>> stored = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            stored.add(KeyedTask.of(i % 3 == 0 ? "a" : "b", () -> {}));
+        }
+        storage.storeAll(stored);
+        List<KeyedTask<String>> fetched = new ArrayList<>(storage.fetchUpTo(5));
+        assert fetched.size() == 5;
+        fetched.addAll(storage.fetchUpTo(5));
+        assert fetched.size() == 8;
+        assert storage.isEmpty();
+        assert storage.fetchUpTo(5).isEmpty();
+        assert fetched.stream().filter(task -> task.key().equals("a")).toList()
+                .equals(List.of(stored.get(0), stored.get(3), stored.get(6)));
+        assert fetched.stream().filter(task -> task.key().equals("b")).toList()
+                .equals(stored.stream().filter(task -> task.key().equals("b")).toList());
+    }
+
+    @Test
+    public void distributionTest() {
+        int trials = 100_000;
+        int heavyDisposals = 0;
+        int heavyFetches = 0;
+        SplittableRandom random = new SplittableRandom(1);
+        List<String> disposed = new ArrayList<>();
+        RandomStorage<String, KeyedTask<String>> storage = new RandomStorage<>(random, 10, task -> disposed.add(task.key()));
+        for (int i = 0; i < trials; i++) {
+            for (int j = 0; j < 9; j++) {
+                storage.store(KeyedTask.of("heavy", () -> {}));
+            }
+            storage.store(KeyedTask.of("light", () -> {}));
+            disposed.clear();
+            storage.store(KeyedTask.of("new", () -> {}));
+            if (disposed.get(0).equals("heavy")) {
+                heavyDisposals++;
+            }
+            Optional<KeyedTask<String>> fetched = storage.fetch();
+            if (fetched.orElseThrow().key().equals("heavy")) {
+                heavyFetches++;
+            }
+            storage.fetchUpTo(10);
+        }
+        assert Math.abs(heavyDisposals / (double) trials - 0.9) < 0.01;
+        // the fetched key is one of heavy, new and light, unless light was the one disposed
+        assert Math.abs(heavyFetches / (double) trials - (0.9 / 3 + 0.1 / 2)) < 0.01;
+    }
+
+    @Test
+    public void keyIndexTest() {
+        KeyIndex<Integer> index = new KeyIndex<>(64);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            Integer key = random.nextInt(200) * 1024;
+            if (expected.containsKey(key)) {
+                assert index.idOf(key) == expected.get(key);
+                if (random.nextBoolean()) {
+                    index.remove(expected.remove(key));
+                    assert index.idOf(key) == KeyIndex.NONE;
+                }
+            } else {
+                assert index.idOf(key) == KeyIndex.NONE;
+                if (expected.size() < 64) {
+                    int id = index.add(key);
+                    assert index.keyOf(id).equals(key);
+                    expected.put(key, id);
+                }
+            }
+        }
+    }
+}
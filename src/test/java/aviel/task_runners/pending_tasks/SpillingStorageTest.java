@@ -0,0 +1,169 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public class SpillingStorageTest {
+    private static final TaskCodec<KeyedTask<Integer>> CODEC = new TaskCodec<>() {
+        @Override
+        public byte[] encode(KeyedTask<Integer> task) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(task.key()).array();
+        }
+
+        @Override
+        public KeyedTask<Integer> decode(byte[] bytes) {
+            return KeyedTask.of(ByteBuffer.wrap(bytes).getInt(), () -> {});
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fifoAcrossSpillsTest() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (SpillingStorage<KeyedTask<Integer>> storage = new SpillingStorage<>(directory, "test", CODEC, 16, 256)) {
+            int stored = 0;
+            int fetched = 0;
+            for (int round = 0; round < 100; round++) {
+                for (int i = 0; i < round * 7 % 100; i++) {
+                    storage.store(KeyedTask.of(stored++, () -> {}));
+                }
+                for (int i = 0; i < round * 5 % 90; i++) {
+                    Optional<KeyedTask<Integer>> task = storage.fetch();
+                    if (task.isEmpty()) {
+                        assert fetched == stored;
+                        break;
+                    }
+                    assert task.get().key() == fetched++;
+                }
+                assert storage.size() == stored - fetched;
+            }
+            for (KeyedTask<Integer> task : storage.fetchUpTo(Integer.MAX_VALUE)) {
+                assert task.key() == fetched++;
+            }
+            assert fetched == stored;
+            assert storage.isEmpty();
+            // only the drained segment that is kept for the next spill is left
+            assert segments(directory) <= 1;
+        }
+        assert segments(directory) == 0;
+    }
+
+    @Test
+    public void taskLargerThanSegmentTest() throws IOException {
+        try (SpillingStorage<KeyedTask<Integer>> storage = new SpillingStorage<>(folder.getRoot().toPath(), "test", CODEC, 1, Integer.BYTES + 3)) {
+            storage.store(KeyedTask.of(0, () -> {}));
+            try {
+                storage.store(KeyedTask.of(1, () -> {}));
+                assert false;
+            } catch (IllegalArgumentException expected) {
+            }
+            assert storage.fetch().orElseThrow().key() == 0;
+            assert storage.isEmpty();
+        }
+    }
+
+    @Test
+    public void failedDecodeKeepsTaskTest() throws IOException {
+        boolean[] fail = {false};
+        TaskCodec<KeyedTask<Integer>> failing = new TaskCodec<>() {
+            @Override
+            public byte[] encode(KeyedTask<Integer> task) {
+                return CODEC.encode(task);
+            }
+
+            @Override
+            public KeyedTask<Integer> decode(byte[] bytes) {
+                if (fail[0]) {
+                    throw new IllegalStateException("corrupt");
+                }
+                return CODEC.decode(bytes);
+            }
+        };
+        try (SpillingStorage<KeyedTask<Integer>> storage = new SpillingStorage<>(folder.getRoot().toPath(), "test", failing, 1, 64)) {
+            storage.storeAll(List.of(KeyedTask.of(0, () -> {}), KeyedTask.of(1, () -> {})));
+            assert storage.fetch().orElseThrow().key() == 0;
+            fail[0] = true;
+            try {
+                storage.fetch();
+                assert false;
+            } catch (IllegalStateException expected) {
+            }
+            assert storage.size() == 1;
+            fail[0] = false;
+            assert storage.fetch().orElseThrow().key() == 1;
+            assert storage.isEmpty();
+        }
+    }
+
+    @Test
+    public void closeDisposesTasksTest() throws IOException {
+        List<Integer> disposed = new ArrayList<>();
+        Path directory = folder.getRoot().toPath();
+        SpillingStorage<KeyedTask<Integer>> storage = new SpillingStorage<>(directory, "test", CODEC, 2, 16);
+        storage.addDisposalListener(task -> disposed.add(task.key()));
+        for (int i = 0; i < 10; i++) {
+            storage.store(KeyedTask.of(i, () -> {}));
+        }
+        assert storage.fetch().orElseThrow().key() == 0;
+        storage.close();
+        assert disposed.equals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assert storage.isEmpty();
+        assert segments(directory) == 0;
+    }
+
+    /**
+     * A spilled task the codec fails on while closing does not keep the tasks discarded before it from being disposed.
+     */
+    @Test
+    public void failedDecodeOnCloseTest() throws IOException {
+        TaskCodec<KeyedTask<Integer>> failing = new TaskCodec<>() {
+            @Override
+            public byte[] encode(KeyedTask<Integer> task) {
+                return CODEC.encode(task);
+            }
+
+            @Override
+            public KeyedTask<Integer> decode(byte[] bytes) {
+                KeyedTask<Integer> task = CODEC.decode(bytes);
+                if (task.key() == 3) {
+                    throw new IllegalStateException("corrupt");
+                }
+                return task;
+            }
+        };
+        List<Integer> disposed = new ArrayList<>();
+        Path directory = folder.getRoot().toPath();
+        SpillingStorage<KeyedTask<Integer>> storage = new SpillingStorage<>(directory, "test", failing, 2, 64);
+        storage.addDisposalListener(task -> disposed.add(task.key()));
+        for (int i = 0; i < 5; i++) {
+            storage.store(KeyedTask.of(i, () -> {}));
+        }
+        try {
+            storage.close();
+            assert false;
+        } catch (IllegalStateException expected) {
+        }
+        assert disposed.equals(List.of(0, 1, 2)) : disposed;
+        assert storage.isEmpty();
+        assert segments(directory) == 0;
+    }
+
+    private static long segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
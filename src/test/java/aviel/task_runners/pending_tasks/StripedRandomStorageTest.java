@@ -0,0 +1,74 @@
+package aviel.task_runners.pending_tasks;
+
+import aviel.task_runners.KeyedTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StripedRandomStorageTest {
+    @Test
+    public void boundUnderContentionTest() throws InterruptedException {
+        int threads = 8;
+        int storesPerThread = 20_000;
+        int maxStoredTasks = 100;
+        AtomicInteger disposed = new AtomicInteger(0);
+        AtomicInteger fetched = new AtomicInteger(0);
+        StripedRandomStorage<Integer, KeyedTask<Integer>> storage =
+                new StripedRandomStorage<>(new SplittableRandom(0), 4, maxStoredTasks, __ -> disposed.incrementAndGet());
+        CountDownLatch done = new CountDownLatch(threads);
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                executor.execute(() -> {
+                    for (int i = 0; i < storesPerThread; i++) {
+                        storage.store(KeyedTask.of(thread * 1000 + i % 37, () -> {}));
+                        if (i % 3 == 0 && storage.fetch().isPresent()) {
+                            fetched.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                });
+            }
+            done.await();
+        }
+        List<KeyedTask<Integer>> remaining = storage.fetchUpTo(Integer.MAX_VALUE);
+        assert remaining.size() <= maxStoredTasks;
+        assert disposed.get() + fetched.get() + remaining.size() == threads * storesPerThread;
+        assert storage.isEmpty();
+    }
+
+    @Test
+    public void distributionTest() {
+        int trials = 50_000;
+        int heavyDisposals = 0;
+        int heavyFetches = 0;
+        List<String> disposed = new ArrayList<>();
+        StripedRandomStorage<String, KeyedTask<String>> storage =
+                new StripedRandomStorage<>(new SplittableRandom(1), 4, 10, task -> disposed.add(task.key()));
+        for (int i = 0; i < trials; i++) {
+            for (int j = 0; j < 9; j++) {
+                storage.store(KeyedTask.of("heavy", () -> {}));
+            }
+            storage.store(KeyedTask.of("light", () -> {}));
+            disposed.clear();
+            storage.store(KeyedTask.of("new", () -> {}));
+            if (disposed.get(0).equals("heavy")) {
+                heavyDisposals++;
+            }
+            Optional<KeyedTask<String>> fetched = storage.fetch();
+            if (fetched.orElseThrow().key().equals("heavy")) {
+                heavyFetches++;
+            }
+            storage.fetchUpTo(10);
+        }
+        assert Math.abs(heavyDisposals / (double) trials - 0.9) < 0.015;
+        assert Math.abs(heavyFetches / (double) trials - (0.9 / 3 + 0.1 / 2)) < 0.015;
+    }
+}
@@ -0,0 +1,119 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class ExactRateLimiterTest {
+    private static final Duration RUNNING = Duration.ofMillis(300);
+
+    /**
+     * The admission events of a limiter that runs its tasks directly cover the decision alone, not the running of the task.
+     */
+    @Test
+    public void admissionEventTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactRateLimiter<String, KeyedTask<String>> limiter = new ExactRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 1);
+        List<RecordedEvent> events = new CopyOnWriteArrayList<>();
+        try (RecordingStream stream = new RecordingStream()) {
+            stream.enable("aviel.task_runners.TaskAdmission");
+            stream.onEvent("aviel.task_runners.TaskAdmission", events::add);
+            stream.startAsync();
+            limiter.submitTask(KeyedTask.of("a", ExactRateLimiterTest::sleep));
+            limiter.submitTask(KeyedTask.of("b", ExactRateLimiterTest::sleep));
+            stream.stop();
+        }
+        assert events.size() == 2 : events;
+        assert events.get(0).getBoolean("admitted");
+        assert events.get(0).getString("key").equals("a");
+        assert !events.get(1).getBoolean("admitted");
+        for (RecordedEvent event : events) {
+            assert event.getDuration().compareTo(RUNNING) < 0 : event;
+        }
+    }
+
+    /**
+     * A batch is admitted as far as the window has room, the rest is pended in order and drained by a single fetch.
+     */
+    @Test
+    public void submitAllTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        ExactRateLimiter<String, KeyedTask<String>> limiter = new ExactRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 3);
+        limiter.submitTask(task(executed, "a"));
+        scheduler.runFor(Duration.ofMillis(500));
+        limiter.submitAll(List.of(task(executed, "b"), task(executed, "c"), task(executed, "d"), task(executed, "e")));
+        assert executed.equals(List.of("a", "b", "c"));
+        limiter.submitAll(List.of(task(executed, "f")));
+        scheduler.runFor(Duration.ofMillis(500));
+        assert executed.equals(List.of("a", "b", "c"));
+        scheduler.runFor(Duration.ofNanos(1));
+        assert executed.equals(List.of("a", "b", "c", "d"));
+        assert scheduler.runFor(Duration.ofMillis(500)) == 1;
+        assert executed.equals(List.of("a", "b", "c", "d", "e", "f"));
+        // the window is full again, so the drain wakes up once more and finds nothing pending
+        assert scheduler.runUntilIdle(10) == 1;
+        limiter.submitAll(List.of());
+        assert executed.size() == 6;
+        assert scheduler.pendingEvents() == 0;
+    }
+
+    @Test
+    public void permitsTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        // the drain is woken up late, so that the window has room while a task is still pending
+        TaskScheduler late = (task, delay, unit) -> scheduler.schedule(task, unit.toNanos(delay) + TimeUnit.MILLISECONDS.toNanos(300), TimeUnit.NANOSECONDS);
+        List<String> executed = new ArrayList<>();
+        ExactRateLimiter<String, KeyedTask<String>> limiter = new ExactRateLimiter<>(
+                QueueStorage::new, late, scheduler, Runnable::run, Duration.ofSeconds(1), 3);
+        assert limiter.tryAcquire(2);
+        assert limiter.untilAvailable(2).equals(Duration.ofSeconds(1).plusNanos(1));
+        assert !limiter.tryAcquire(2);
+        scheduler.runFor(Duration.ofMillis(100));
+        limiter.submitTask(task(executed, "a"));
+        assert limiter.untilAvailable(1).equals(Duration.ofMillis(900).plusNanos(1));
+        limiter.submitTask(task(executed, "b"));
+        assert executed.equals(List.of("a"));
+        scheduler.runFor(Duration.ofMillis(1000));
+        // the window has room, but b is pending until the late drain
+        assert limiter.untilAvailable(1).equals(Duration.ZERO);
+        assert !limiter.tryAcquire(1);
+        scheduler.runFor(Duration.ofMillis(300));
+        assert executed.equals(List.of("a", "b"));
+        assert limiter.tryAcquire(1);
+        try {
+            limiter.tryAcquire(4);
+            assert false;
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            limiter.untilAvailable(0);
+            assert false;
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static KeyedTask<String> task(List<String> executed, String name) {
+        return KeyedTask.of(name, () -> executed.add(name));
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(RUNNING);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.DeadlinedTask;
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.*;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class ExactUniformingRateLimiterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Executor CATCHING = task -> {
+        try {
+            task.run();
+        } catch (RuntimeException ignored) {
+        }
+    };
+
+    @Test
+    public void outcomesTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactUniformingRateLimiter<KeyedTask<String>> limiter = new ExactUniformingRateLimiter<>(
+                () -> new BoundedQueueStorage<>(1, OverflowPolicy.DROP_OLDEST), scheduler, scheduler, CATCHING, 0, Duration.ofSeconds(1), 1);
+        CompletableFuture<TaskOutcome> executed = limiter.submitAsync(KeyedTask.of("a", () -> {}));
+        CompletableFuture<TaskOutcome> disposed = limiter.submitAsync(KeyedTask.of("a", () -> {}));
+        assert executed.getNow(null) == TaskOutcome.EXECUTED;
+        assert !disposed.isDone();
+        assert !limiter.drained().isDone();
+        IllegalStateException failure = new IllegalStateException();
+        CompletableFuture<TaskOutcome> failed = limiter.submitAsync(KeyedTask.of("a", () -> {
+            throw failure;
+        }));
+        assert disposed.getNow(null) == TaskOutcome.DISPOSED;
+        assert !failed.isDone();
+        scheduler.runUntilIdle(10);
+        assert failed.isCompletedExceptionally();
+        assert failed.exceptionNow() == failure;
+        assert limiter.drained().isDone();
+
+        ExactUniformingRateLimiter<KeyedTask<String>> rejecting = new ExactUniformingRateLimiter<>(
+                () -> new BoundedQueueStorage<>(1, OverflowPolicy.DROP_OLDEST), scheduler, scheduler, task -> {
+            throw new RejectedExecutionException();
+        }, 0, Duration.ofSeconds(1), 1);
+        assert rejecting.submitAsync(KeyedTask.of("a", () -> {})).getNow(null) == TaskOutcome.REJECTED;
+    }
+
+    /**
+     * Stages depending on the outcome of a task that the executor runs on the draining thread do not run under the limiter's lock,
+     * so a stage that waits for another thread's submission does not deadlock the drain.
+     */
+    @Test
+    public void dependentStageOutsideLockTest() throws InterruptedException {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactUniformingRateLimiter<KeyedTask<String>> limiter = new ExactUniformingRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, 0, Duration.ofSeconds(1), 1);
+        limiter.submitTask(KeyedTask.of("a", () -> {}));
+        CompletableFuture<TaskOutcome> pended = limiter.submitAsync(KeyedTask.of("b", () -> {}));
+        Thread[] submitter = new Thread[1];
+        boolean[] joined = {false};
+        pended.thenRun(() -> {
+            submitter[0] = new Thread(() -> limiter.submitTask(KeyedTask.of("c", () -> {})));
+            submitter[0].start();
+            try {
+                submitter[0].join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            joined[0] = !submitter[0].isAlive();
+        });
+        scheduler.runFor(Duration.ofSeconds(1).plusNanos(1));
+        assert pended.getNow(null) == TaskOutcome.EXECUTED;
+        assert joined[0];
+        submitter[0].join();
+    }
+
+    /**
+     * Expired tasks are disposed by the drain's fetch, and their futures are completed by the drain rather than by a later submission.
+     */
+    @Test
+    public void disposedWhileDrainingTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactUniformingRateLimiter<DeadlinedTask<String>> limiter = new ExactUniformingRateLimiter<>(
+                () -> new DeadlineStorage<>(scheduler, __ -> {}), scheduler, scheduler, Runnable::run, 0, Duration.ofSeconds(1), 1);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        limiter.submitAsync(DeadlinedTask.of("a", Long.MAX_VALUE, () -> {}));
+        CompletableFuture<TaskOutcome> executed = limiter.submitAsync(DeadlinedTask.of("a", second + second / 2, () -> {}));
+        CompletableFuture<TaskOutcome> expired = limiter.submitAsync(DeadlinedTask.of("a", second + second * 7 / 10, () -> {}));
+        CompletableFuture<Void> drained = limiter.drained();
+        scheduler.runFor(Duration.ofMillis(1100));
+        assert executed.getNow(null) == TaskOutcome.EXECUTED;
+        assert !expired.isDone();
+        scheduler.runUntilIdle(10);
+        assert expired.getNow(null) == TaskOutcome.DISPOSED;
+        assert drained.isDone();
+    }
+
+    @Test
+    public void closedStorageTest() throws Exception {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<SpillingStorage<KeyedTask<Integer>>> storages = new ArrayList<>();
+        TaskCodec<KeyedTask<Integer>> codec = new TaskCodec<>() {
+            @Override
+            public byte[] encode(KeyedTask<Integer> task) {
+                return ByteBuffer.allocate(Integer.BYTES).putInt(task.key()).array();
+            }
+
+            @Override
+            public KeyedTask<Integer> decode(byte[] bytes) {
+                return KeyedTask.of(ByteBuffer.wrap(bytes).getInt(), () -> {});
+            }
+        };
+        ExactUniformingRateLimiter<KeyedTask<Integer>> limiter = new ExactUniformingRateLimiter<>(() -> {
+            try {
+                storages.add(new SpillingStorage<>(folder.getRoot().toPath(), "test", codec, 2, 64));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return storages.get(0);
+        }, scheduler, scheduler, Runnable::run, 0, Duration.ofSeconds(1), 1);
+        limiter.submitAsync(KeyedTask.of(0, () -> {}));
+        List<CompletableFuture<TaskOutcome>> pended = new ArrayList<>();
+        for (int i = 1; i < 5; i++) {
+            pended.add(limiter.submitAsync(KeyedTask.of(i, () -> {})));
+        }
+        storages.get(0).close();
+        // the hot tasks are the submitted instances, the spilled ones are decoded copies that no future waits for
+        assert pended.get(0).getNow(null) == TaskOutcome.DISPOSED;
+        assert pended.get(1).getNow(null) == TaskOutcome.DISPOSED;
+        scheduler.runUntilIdle(10);
+        assert limiter.drained().isDone();
+    }
+
+    @Test
+    public void rejectingStorageTest() {
+        List<Supplier<Storage<KeyedTask<String>>>> storages = List.of(
+                () -> new BoundedQueueStorage<>(1, OverflowPolicy.REJECT),
+                () -> new DeficitRoundRobinStorage<>(key -> 1, 1, OverflowPolicy.REJECT, __ -> {}));
+        for (Supplier<Storage<KeyedTask<String>>> storage : storages) {
+            VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+            ExactUniformingRateLimiter<KeyedTask<String>> limiter =
+                    new ExactUniformingRateLimiter<>(storage, scheduler, scheduler, Runnable::run, 0, Duration.ofSeconds(1), 1);
+            CompletableFuture<TaskOutcome> executed = limiter.submitAsync(KeyedTask.of("a", () -> {}));
+            CompletableFuture<TaskOutcome> pended = limiter.submitAsync(KeyedTask.of("a", () -> {}));
+            CompletableFuture<TaskOutcome> rejected = limiter.submitAsync(KeyedTask.of("a", () -> {}));
+            assert executed.getNow(null) == TaskOutcome.EXECUTED;
+            assert !pended.isDone();
+            assert rejected.getNow(null) == TaskOutcome.REJECTED;
+            try {
+                limiter.submitTask(KeyedTask.of("a", () -> {}));
+                assert false;
+            } catch (RejectedExecutionException expected) {
+            }
+            scheduler.runUntilIdle(10);
+            assert pended.getNow(null) == TaskOutcome.EXECUTED;
+            assert limiter.drained().isDone();
+        }
+    }
+
+    @Test
+    public void partiallyRejectedSubmitAllTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactUniformingRateLimiter<KeyedTask<String>> limiter = new ExactUniformingRateLimiter<>(
+                () -> new BoundedQueueStorage<>(2, OverflowPolicy.REJECT), scheduler, scheduler, Runnable::run, 0, Duration.ofSeconds(1), 1);
+        int[] ran = {0};
+        List<KeyedTask<String>> tasks = List.of(
+                KeyedTask.of("a", () -> ran[0]++), KeyedTask.of("a", () -> ran[0]++), KeyedTask.of("a", () -> ran[0]++), KeyedTask.of("a", () -> ran[0]++));
+        try {
+            limiter.submitAll(tasks);
+            assert false;
+        } catch (RejectedExecutionException expected) {
+        }
+        assert ran[0] == 1;
+        assert !limiter.drained().isDone();
+        scheduler.runUntilIdle(10);
+        assert ran[0] == 3;
+        assert limiter.drained().isDone();
+    }
+}
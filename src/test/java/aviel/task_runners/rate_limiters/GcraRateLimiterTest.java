@@ -0,0 +1,125 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GcraRateLimiterTest {
+    /**
+     * Threads racing on the theoretical arrival time at a single instant are admitted exactly limit times in total.
+     */
+    @Test
+    public void concurrentAdmissionTest() throws InterruptedException {
+        int limit = 1000;
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        AtomicInteger executed = new AtomicInteger();
+        GcraRateLimiter<Runnable> limiter = new GcraRateLimiter<>(QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), limit);
+        AtomicInteger acquired = new AtomicInteger();
+        int threadsCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsCount; t++) {
+            boolean submitting = t % 2 == 0;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < limit; i++) {
+                    if (submitting) {
+                        limiter.submitTask(executed::incrementAndGet);
+                    } else if (limiter.tryAcquire(1)) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert executed.get() + acquired.get() == limit : executed + " " + acquired;
+        assert !limiter.tryAcquire(1);
+        // the pended submissions are drained by a single scheduled drain at a time
+        scheduler.runUntilIdle(limit * threadsCount);
+        assert executed.get() == limit * threadsCount / 2;
+    }
+
+    /**
+     * A drain acquires a whole burst at once and gives back the permits it had no pending tasks for.
+     */
+    @Test
+    public void drainReleasesUnusedPermitsTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        // the drain is woken up late, once the whole burst is available again
+        TaskScheduler late = (task, delay, unit) -> scheduler.schedule(task, unit.toNanos(delay) + TimeUnit.MILLISECONDS.toNanos(300), TimeUnit.NANOSECONDS);
+        List<Integer> executed = new ArrayList<>();
+        GcraRateLimiter<Runnable> limiter = new GcraRateLimiter<>(QueueStorage::new, late, scheduler, Runnable::run, Duration.ofMillis(400), 4);
+        for (int i = 0; i < 5; i++) {
+            int id = i;
+            limiter.submitTask(() -> executed.add(id));
+        }
+        assert executed.equals(List.of(0, 1, 2, 3));
+        assert scheduler.runFor(Duration.ofMillis(400)) == 1;
+        assert executed.equals(List.of(0, 1, 2, 3, 4));
+        assert limiter.tryAcquire(3);
+        assert !limiter.tryAcquire(1);
+    }
+
+    /**
+     * Once a task is pended, tasks submitted after it are pended behind it even when permits are available,
+     * and the drain executes them in order, one per emission interval.
+     */
+    @Test
+    public void pendTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<Integer> executed = new ArrayList<>();
+        GcraRateLimiter<Runnable> limiter = new GcraRateLimiter<>(QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofMillis(200), 2);
+        for (int i = 0; i < 4; i++) {
+            int id = i;
+            limiter.submitTask(() -> executed.add(id));
+        }
+        assert executed.equals(List.of(0, 1));
+        assert limiter.untilAvailable(1).equals(Duration.ofMillis(100));
+        scheduler.runFor(Duration.ofMillis(150));
+        assert executed.equals(List.of(0, 1, 2));
+        limiter.submitAll(List.of(() -> executed.add(4), () -> executed.add(5)));
+        assert executed.equals(List.of(0, 1, 2));
+        scheduler.runFor(Duration.ofMillis(50));
+        assert executed.equals(List.of(0, 1, 2, 3));
+        scheduler.runUntilIdle(10);
+        assert executed.equals(List.of(0, 1, 2, 3, 4, 5));
+        assert scheduler.nanoTime() == TimeUnit.MILLISECONDS.toNanos(400);
+        assert scheduler.pendingEvents() == 0;
+    }
+
+    @Test
+    public void permitsBehindPendingTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        TaskScheduler late = (task, delay, unit) -> scheduler.schedule(task, unit.toNanos(delay) + TimeUnit.MILLISECONDS.toNanos(300), TimeUnit.NANOSECONDS);
+        List<Integer> executed = new ArrayList<>();
+        GcraRateLimiter<Runnable> limiter = new GcraRateLimiter<>(QueueStorage::new, late, scheduler, Runnable::run, Duration.ofMillis(200), 2);
+        assert limiter.tryAcquire(2);
+        limiter.submitTask(() -> executed.add(0));
+        assert executed.isEmpty();
+        scheduler.runFor(Duration.ofMillis(200));
+        // permits are available again, but the task pended before is not drained yet
+        assert limiter.untilAvailable(2).equals(Duration.ZERO);
+        assert !limiter.tryAcquire(1);
+        scheduler.runFor(Duration.ofMillis(200));
+        assert executed.equals(List.of(0));
+        assert limiter.tryAcquire(1);
+        assert !limiter.tryAcquire(1);
+    }
+}
@@ -0,0 +1,86 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HierarchicalRateLimiterTest {
+    /**
+     * A task pended by the global limit is woken up by the global window's expiry,
+     * even though a wakeup was already scheduled for the later expiry of a key window.
+     */
+    @Test
+    public void earlierExpiryTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        HierarchicalRateLimiter<String, KeyedTask<String>> limiter = new HierarchicalRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 2, Duration.ofSeconds(10), 1);
+        submit(limiter, executed, "a", 1);
+        submit(limiter, executed, "a", 2);
+        submit(limiter, executed, "b", 1);
+        submit(limiter, executed, "c", 1);
+        assert executed.equals(List.of("a1", "b1"));
+        scheduler.runFor(Duration.ofMillis(1001));
+        assert executed.equals(List.of("a1", "b1", "c1"));
+        scheduler.runUntilIdle(10);
+        assert executed.equals(List.of("a1", "b1", "c1", "a2"));
+        assert scheduler.nanoTime() == Duration.ofSeconds(10).toNanos() + 1;
+    }
+
+    /**
+     * A task held back by its key limit is executed before the tasks fetched after it once its key allows it.
+     */
+    @Test
+    public void heldOrderTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        HierarchicalRateLimiter<String, KeyedTask<String>> limiter = new HierarchicalRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 3, Duration.ofSeconds(1), 1);
+        submit(limiter, executed, "x", 1);
+        scheduler.runFor(Duration.ofMillis(500));
+        submit(limiter, executed, "a", 1);
+        submit(limiter, executed, "y", 1);
+        scheduler.runFor(Duration.ofMillis(100));
+        submit(limiter, executed, "a", 2);
+        submit(limiter, executed, "c", 1);
+        submit(limiter, executed, "d", 1);
+        assert executed.equals(List.of("x1", "a1", "y1"));
+        // x1 expires first, a2 is held since a1 has not expired yet
+        scheduler.runFor(Duration.ofMillis(401));
+        assert executed.equals(List.of("x1", "a1", "y1", "c1"));
+        scheduler.runUntilIdle(10);
+        assert executed.equals(List.of("x1", "a1", "y1", "c1", "a2", "d1"));
+    }
+
+    /**
+     * The windows of idle keys are dropped by the following submissions, not only by those of new keys.
+     */
+    @Test
+    public void pruneIdleKeysTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        HierarchicalRateLimiter<String, KeyedTask<String>> limiter = new HierarchicalRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 1000, Duration.ofSeconds(1), 1);
+        for (int i = 0; i < 100; i++) {
+            submit(limiter, executed, "k" + i, 0);
+        }
+        assert limiter.activeKeys() == 100;
+        scheduler.runFor(Duration.ofMillis(500));
+        submit(limiter, executed, "k99", 1);
+        assert limiter.activeKeys() == 100;
+        scheduler.runFor(Duration.ofMillis(600));
+        submit(limiter, executed, "k0", 1);
+        // the drain of k99's pended task dropped the idle keys, k99 executed again and k0 is new
+        assert limiter.activeKeys() == 2 : limiter.activeKeys();
+        assert executed.size() == 102;
+    }
+
+    private static void submit(HierarchicalRateLimiter<String, KeyedTask<String>> limiter, List<String> executed, String key, int id) {
+        limiter.submitTask(KeyedTask.of(key, () -> executed.add(key + id)));
+    }
+}
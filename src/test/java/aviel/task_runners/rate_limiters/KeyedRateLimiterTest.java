@@ -0,0 +1,108 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyedRateLimiterTest {
+    @Test
+    public void perKeyLimitTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        KeyedRateLimiter<String, KeyedTask<String>> limiter = new KeyedRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 2);
+        for (int i = 1; i <= 3; i++) {
+            submit(limiter, executed, "a", i);
+        }
+        submit(limiter, executed, "b", 1);
+        submit(limiter, executed, "b", 2);
+        assert executed.equals(List.of("a1", "a2", "b1", "b2"));
+        scheduler.runFor(Duration.ofSeconds(1));
+        assert executed.size() == 4;
+        scheduler.runFor(Duration.ofNanos(1));
+        assert executed.equals(List.of("a1", "a2", "b1", "b2", "a3"));
+    }
+
+    /**
+     * A sweep evicts only the keys that were left alone for a whole sweep period, and stops once no key is represented.
+     */
+    @Test
+    public void sweepTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> executed = new ArrayList<>();
+        KeyedRateLimiter<String, KeyedTask<String>> limiter = new KeyedRateLimiter<>(
+                QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 1);
+        submit(limiter, executed, "a", 1);
+        submit(limiter, executed, "b", 1);
+        submit(limiter, executed, "b", 2);
+        scheduler.runFor(Duration.ofMillis(2500));
+        assert executed.equals(List.of("a1", "b1", "b2"));
+        // the sweep at 2 seconds evicted a, b was drained after the sweep at 1 second so it was not looked at yet
+        assert limiter.activeKeys() == 1;
+        submit(limiter, executed, "a", 2);
+        assert limiter.activeKeys() == 2;
+        scheduler.runFor(Duration.ofMillis(500));
+        assert limiter.activeKeys() == 1;
+        scheduler.runUntilIdle(10);
+        assert limiter.activeKeys() == 0;
+        assert scheduler.pendingEvents() == 0;
+        submit(limiter, executed, "b", 3);
+        assert executed.equals(List.of("a1", "b1", "b2", "a2", "b3"));
+        assert limiter.activeKeys() == 1;
+    }
+
+    /**
+     * Submissions racing with sweeps that evict their keys retry on the key's new state, so every task is executed once.
+     */
+    @Test
+    public void concurrentEvictionTest() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger executed = new AtomicInteger();
+            KeyedRateLimiter<Integer, KeyedTask<Integer>> limiter = new KeyedRateLimiter<>(QueueStorage::new, scheduler, Duration.ofMillis(1), 4);
+            int threadsCount = 4;
+            int perThread = 2000;
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < threadsCount; t++) {
+                int seed = t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        limiter.submitTask(KeyedTask.of((seed + i) % 64, executed::incrementAndGet));
+                        if (i % 100 == 0) {
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while ((executed.get() < threadsCount * perThread || limiter.activeKeys() > 0) && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assert executed.get() == threadsCount * perThread : executed;
+            assert limiter.activeKeys() == 0 : limiter.activeKeys();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static void submit(KeyedRateLimiter<String, KeyedTask<String>> limiter, List<String> executed, String key, int id) {
+        limiter.submitTask(KeyedTask.of(key, () -> executed.add(key + id)));
+    }
+}
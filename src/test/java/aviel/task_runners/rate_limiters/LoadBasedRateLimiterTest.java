@@ -0,0 +1,65 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoadBasedRateLimiterTest {
+    /**
+     * A load rate of 10 decrements the load every 100 milliseconds.
+     */
+    @Test
+    public void drainTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<Integer> executed = new ArrayList<>();
+        LoadBasedRateLimiter<Runnable> limiter = new LoadBasedRateLimiter<>(QueueStorage::new, scheduler, scheduler, Runnable::run, 10, 3);
+        for (int i = 0; i < 6; i++) {
+            int id = i;
+            limiter.submitTask(() -> executed.add(id));
+        }
+        assert executed.equals(List.of(0, 1, 2));
+        scheduler.runFor(Duration.ofMillis(99));
+        assert executed.size() == 3;
+        scheduler.runFor(Duration.ofMillis(1));
+        assert executed.equals(List.of(0, 1, 2, 3));
+        // a task submitted while others are pending is pended behind them even once the load allows it
+        limiter.submitTask(() -> executed.add(6));
+        scheduler.runFor(Duration.ofMillis(200));
+        assert executed.equals(List.of(0, 1, 2, 3, 4, 5));
+        scheduler.runUntilIdle(10);
+        assert executed.equals(List.of(0, 1, 2, 3, 4, 5, 6));
+        assert scheduler.pendingEvents() == 0;
+    }
+
+    /**
+     * The load decays by the time elapsed since it was last looked at, without any scheduled task.
+     */
+    @Test
+    public void lazyDecayTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<Integer> executed = new ArrayList<>();
+        LoadBasedRateLimiter<Runnable> limiter = new LoadBasedRateLimiter<>(QueueStorage::new, scheduler, scheduler, Runnable::run, 10, 3);
+        for (int i = 0; i < 3; i++) {
+            int id = i;
+            limiter.submitTask(() -> executed.add(id));
+        }
+        assert scheduler.pendingEvents() == 0;
+        scheduler.runFor(Duration.ofMillis(200));
+        limiter.submitAll(List.of(() -> executed.add(3), () -> executed.add(4), () -> executed.add(5)));
+        assert executed.equals(List.of(0, 1, 2, 3, 4));
+        assert scheduler.pendingEvents() == 1;
+        scheduler.runUntilIdle(10);
+        assert executed.equals(List.of(0, 1, 2, 3, 4, 5));
+        // the load never decays below 0, however long it was left alone
+        scheduler.runFor(Duration.ofHours(1));
+        for (int i = 6; i < 10; i++) {
+            int id = i;
+            limiter.submitTask(() -> executed.add(id));
+        }
+        assert executed.equals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8));
+    }
+}
@@ -0,0 +1,142 @@
+package aviel.task_runners.rate_limiters;
+
+import aviel.task_runners.Clock;
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.TaskScheduler;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.simulation.VirtualTimeScheduler;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every limiter runs both admitted and pended tasks on the given executor,
+ * a drain whose executor rejects a task does not stop the following drains, and every drain is traced by a drain wakeup event.
+ */
+public class RateLimiterExecutorTest {
+    private interface SimulatedFactory {
+        RateLimiter<KeyedTask<Integer>> create(TaskScheduler scheduler, Clock clock, Executor executor);
+    }
+
+    private interface Factory {
+        RateLimiter<KeyedTask<Integer>> create(ScheduledExecutorService scheduler, Executor executor);
+    }
+
+    private static final Duration SECOND = Duration.ofSeconds(1);
+
+    private static final Map<String, SimulatedFactory> SIMULATED = Map.of(
+            "exact", (scheduler, clock, executor) -> new ExactRateLimiter<>(QueueStorage::new, scheduler, clock, executor, SECOND, 1),
+            "uniforming", (scheduler, clock, executor) -> new ExactUniformingRateLimiter<>(QueueStorage::new, scheduler, clock, executor, 0, SECOND, 1),
+            "gcra", (scheduler, clock, executor) -> new GcraRateLimiter<>(QueueStorage::new, scheduler, clock, executor, SECOND, 1),
+            "loadBased", (scheduler, clock, executor) -> new LoadBasedRateLimiter<>(QueueStorage::new, scheduler, clock, executor, 1, 1),
+            "hierarchical", (scheduler, clock, executor) -> new HierarchicalRateLimiter<>(QueueStorage::new, scheduler, clock, executor, SECOND, 1, SECOND, 1),
+            "keyed", (scheduler, clock, executor) -> new KeyedRateLimiter<>(QueueStorage::new, scheduler, clock, executor, SECOND, 1));
+
+    @Test
+    public void rejectedDrainTest() {
+        SIMULATED.forEach((name, factory) -> {
+            VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+            List<Integer> executed = new ArrayList<>();
+            boolean[] rejecting = {false};
+            RateLimiter<KeyedTask<Integer>> limiter = factory.create(scheduler, scheduler, task -> {
+                if (rejecting[0]) {
+                    rejecting[0] = false;
+                    throw new RejectedExecutionException();
+                }
+                task.run();
+            });
+            for (int i = 0; i < 2; i++) {
+                int id = i;
+                limiter.submitTask(KeyedTask.of(0, () -> executed.add(id)));
+            }
+            rejecting[0] = true;
+            try {
+                scheduler.runFor(Duration.ofSeconds(2));
+            } catch (RejectedExecutionException expected) {
+            }
+            assert !rejecting[0] : name;
+            for (int i = 2; i < 4; i++) {
+                int id = i;
+                limiter.submitTask(KeyedTask.of(0, () -> executed.add(id)));
+            }
+            scheduler.runUntilIdle(100);
+            assert executed.equals(List.of(0, 2, 3)) : name + " " + executed;
+        });
+    }
+
+    /**
+     * Every limiter emits a drain wakeup event for the drains it schedules, on behalf of the limiter rather than of its parts.
+     */
+    @Test
+    public void drainWakeupEventTest() {
+        SIMULATED.forEach((name, factory) -> {
+            VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+            List<Integer> executed = new ArrayList<>();
+            RateLimiter<KeyedTask<Integer>> limiter = factory.create(scheduler, scheduler, Runnable::run);
+            List<RecordedEvent> events = new CopyOnWriteArrayList<>();
+            try (RecordingStream stream = new RecordingStream()) {
+                stream.enable("aviel.task_runners.DrainWakeup");
+                stream.onEvent("aviel.task_runners.DrainWakeup", events::add);
+                stream.startAsync();
+                for (int i = 0; i < 2; i++) {
+                    int id = i;
+                    limiter.submitTask(KeyedTask.of(0, () -> executed.add(id)));
+                }
+                scheduler.runUntilIdle(100);
+                stream.stop();
+            }
+            assert executed.equals(List.of(0, 1)) : name + " " + executed;
+            assert !events.isEmpty() : name;
+            if (!(limiter instanceof LoadBasedRateLimiter)) {
+                // a load based limiter drains through the GCRA limiter it delegates to
+                for (RecordedEvent event : events) {
+                    assert event.getString("source").equals(Objects.toIdentityString(limiter)) : name + " " + event;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void executorConstructorsTest() throws InterruptedException {
+        Duration window = Duration.ofMillis(20);
+        Map<String, Factory> factories = Map.of(
+                "exact", (scheduler, executor) -> new ExactRateLimiter<>(QueueStorage::new, scheduler, executor, window, 1),
+                "uniforming", (scheduler, executor) -> new ExactUniformingRateLimiter<>(QueueStorage::new, scheduler, executor, 0, window, 1),
+                "gcra", (scheduler, executor) -> new GcraRateLimiter<>(QueueStorage::new, scheduler, executor, window, 1),
+                "loadBased", (scheduler, executor) -> new LoadBasedRateLimiter<>(QueueStorage::new, scheduler, executor, 50, 1),
+                "hierarchical", (scheduler, executor) -> new HierarchicalRateLimiter<>(QueueStorage::new, scheduler, executor, window, 1, window, 1),
+                "keyed", (scheduler, executor) -> new KeyedRateLimiter<>(QueueStorage::new, scheduler, executor, window, 1));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (Map.Entry<String, Factory> entry : factories.entrySet()) {
+                AtomicInteger passed = new AtomicInteger();
+                CountDownLatch ran = new CountDownLatch(3);
+                RateLimiter<KeyedTask<Integer>> limiter = entry.getValue().create(scheduler, task -> {
+                    passed.incrementAndGet();
+                    task.run();
+                });
+                for (int i = 0; i < 3; i++) {
+                    limiter.submitTask(KeyedTask.of(0, ran::countDown));
+                }
+                assert ran.await(5, TimeUnit.SECONDS) : entry.getKey();
+                assert passed.get() == 3 : entry.getKey();
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package aviel.task_runners.simulation;
+
+import aviel.task_runners.KeyedTask;
+import aviel.task_runners.pending_tasks.QueueStorage;
+import aviel.task_runners.rate_limiters.ExactRateLimiter;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class VirtualTimeSchedulerTest {
+    @Test
+    public void orderTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        List<String> ran = new ArrayList<>();
+        scheduler.schedule(() -> ran.add("b"), 2, TimeUnit.SECONDS);
+        scheduler.schedule(() -> ran.add("a"), 1, TimeUnit.SECONDS);
+        scheduler.schedule(() -> ran.add("c"), 2, TimeUnit.SECONDS);
+        scheduler.schedule(() -> scheduler.schedule(() -> ran.add("d"), 0, TimeUnit.SECONDS), 3, TimeUnit.SECONDS);
+        assert scheduler.runFor(Duration.ofMillis(1500)) == 1;
+        assert scheduler.nanoTime() == TimeUnit.MILLISECONDS.toNanos(1500);
+        assert scheduler.runUntilIdle(10) == 4;
+        assert scheduler.nanoTime() == TimeUnit.SECONDS.toNanos(3);
+        assert ran.equals(List.of("a", "b", "c", "d"));
+    }
+
+    @Test
+    public void exactRateLimiterHourTest() {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        ExactRateLimiter<Integer, KeyedTask<Integer>> limiter =
+                new ExactRateLimiter<>(QueueStorage::new, scheduler, scheduler, Runnable::run, Duration.ofSeconds(1), 10);
+        List<Long> executions = new ArrayList<>();
+        List<KeyedTask<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 40_000; i++) {
+            tasks.add(KeyedTask.of(i, () -> executions.add(scheduler.nanoTime())));
+        }
+        limiter.submitAll(tasks);
+        scheduler.runFor(Duration.ofHours(1));
+        assert executions.size() == 36_000;
+        for (int i = 10; i < executions.size(); i++) {
+            assert executions.get(i) - executions.get(i - 10) > TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}